@@ -0,0 +1,255 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+
+// Non-blocking facade over one .zvfs image.
+// Reads go through an AsynchronousFileChannel, so no thread waits for the disk.
+// Writes still use FileSystem.addfs, but run on one writer thread per image (one
+// writer at a time, like the CLI). At most maxInFlight requests run at the same
+// time, further requests wait in a queue until one of them is done. Writer thread,
+// limit and queue belong to the image (by canonical path): all facades on it in
+// this JVM share them (the limit of the first one counts), and addfs also takes
+// the image lock of Volume, so a Volume and a facade never write at once.
+// addfs never moves or overwrites existing data, so reads can run next to writes.
+// dfrgfs, writefs / appendfs (write in place or move the file) and, with
+// auto-defrag on, rmfs (moves extents) change data a read may be on; they must
+// not run on the image while it is used through this class.
+public class AsyncFileSystem implements AutoCloseable {
+
+    // state of one image, shared by all facades on it
+    private static final class Image {
+        final ExecutorService writer = Executors.newSingleThreadExecutor();
+
+        // limit of requests in flight + requests waiting for a permit
+        final Semaphore permits;
+        final Queue<Runnable> waiting = new ConcurrentLinkedQueue<>();
+
+        // open facades, the writer thread ends with the last one (guarded by IMAGES)
+        int users;
+
+        Image(int maxInFlight) {
+            permits = new Semaphore(maxInFlight);
+        }
+    }
+
+    private static final Map<String, Image> IMAGES = new HashMap<>();
+
+    private final String fsName;
+    private final String canonicalName;
+    private final AsynchronousFileChannel channel;
+    private final Image image;
+    private final ReentrantReadWriteLock lock;
+
+    // requests of this facade that were admitted and are not done yet; close()
+    // waits for them (closed and the set are guarded by the set)
+    private final Set<CompletableFuture<?>> admitted = ConcurrentHashMap.newKeySet();
+    private boolean closed;
+
+    // only used for the layout (offsets, entry lookup), never for I/O
+    private final FileSystem layout = new FileSystem();
+
+    public AsyncFileSystem(String fsName, int maxInFlight) throws IOException {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("maxInFlight must be at least 1");
+        }
+        this.fsName = fsName;
+        this.canonicalName = new File(fsName).getCanonicalPath();
+        this.lock = Volume.lockOf(fsName);
+        this.channel = AsynchronousFileChannel.open(Paths.get(fsName), StandardOpenOption.READ);
+        synchronized (IMAGES) {
+            this.image = IMAGES.computeIfAbsent(canonicalName, name -> new Image(maxInFlight));
+            image.users++;
+        }
+    }
+
+    // content of an active file, like catfs but as raw bytes
+    public CompletableFuture<ByteBuffer> readAsync(String fileName) {
+        return admit(() -> readFrom(channel, fileName));
+    }
+
+    // adds a file with the given content, like addfs; fails if addfs refuses it
+    public CompletableFuture<Void> addAsync(String fileName, ByteBuffer source) {
+        byte[] content = new byte[source.remaining()];
+        source.duplicate().get(content);
+
+        return admit(() -> CompletableFuture.supplyAsync(() -> {
+            lock.writeLock().lock();
+            try {
+                String result = new FileSystem().addfs(fsName, fileName, content);
+                if (!result.startsWith("Added file")) {
+                    throw new IllegalStateException(result);
+                }
+                return null;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }, image.writer));
+    }
+
+    // refuses new requests, waits for all admitted ones (queued or running, reads
+    // and writes), then closes the channel
+    @Override
+    public void close() throws IOException {
+        CompletableFuture<?>[] running;
+        synchronized (admitted) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            running = admitted.toArray(new CompletableFuture<?>[0]);
+        }
+
+        try {
+            // failed requests count as done, their callers see the error
+            CompletableFuture.allOf(running).handle((value, error) -> null).join();
+        } finally {
+            synchronized (IMAGES) {
+                if (--image.users == 0) {
+                    IMAGES.remove(canonicalName);
+                    image.writer.shutdown();
+                }
+            }
+            channel.close();
+        }
+    }
+
+    // ----- admission (limit of requests in flight) -----
+
+    private <T> CompletableFuture<T> admit(Supplier<CompletableFuture<T>> operation) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        synchronized (admitted) {
+            if (closed) {
+                return CompletableFuture.failedFuture(new IOException("Filesystem " + fsName + " is closed"));
+            }
+            admitted.add(result);
+        }
+        result.whenComplete((value, error) -> admitted.remove(result));
+
+        image.waiting.add(() -> {
+            CompletableFuture<T> started;
+            try {
+                started = operation.get();
+            } catch (RuntimeException e) {
+                started = CompletableFuture.failedFuture(e);
+            }
+            started.whenComplete((value, error) -> {
+                image.permits.release();
+                startWaiting();
+                if (error != null) {
+                    result.completeExceptionally(error);
+                } else {
+                    result.complete(value);
+                }
+            });
+        });
+        startWaiting();
+
+        return result;
+    }
+
+    // starts queued requests as long as permits are left
+    private void startWaiting() {
+        while (!image.waiting.isEmpty() && image.permits.tryAcquire()) {
+            Runnable next = image.waiting.poll();
+            if (next == null) {
+                image.permits.release();
+                break;
+            }
+            next.run();
+        }
+    }
+
+    // ----- asynchronous reads -----
+
+    // reads header + entry table, looks up the file and reads its data
+    private CompletableFuture<ByteBuffer> readFrom(AsynchronousFileChannel image, String fileName) {
+        return read(image, 0, layout.metadataSize()).thenCompose(metadata -> {
+            int[] found = layout.locate(metadata.array(), fileName);
+            if (found == null) {
+                return CompletableFuture.failedFuture(
+                        new IOException("File " + fileName + " not found in filesystem " + fsName));
+            }
+            return readExtent(image, metadata.array(), found[0], found[1]);
+        });
+    }
+
+    // reads file data, data of a clone that lives in the backing image is read
+    // from there (the backing image may be a clone itself)
+    private CompletableFuture<ByteBuffer> readExtent(AsynchronousFileChannel image, byte[] metadata,
+            int start, int length) {
+        int backingLimit = layout.backingLimit(metadata);
+        if (backingLimit == 0 || start >= backingLimit) {
+            return read(image, start, length);
+        }
+
+        // the clone stores the (null-terminated) name of its backing image at
+        // DATA_START, right after header + entry table
+        int dataStart = layout.metadataSize();
+        return read(image, dataStart, dataStart - layout.headerSize).thenCompose(nameBuffer -> {
+            String backingName = new String(nameBuffer.array(), StandardCharsets.UTF_8).split("\0", 2)[0];
+            AsynchronousFileChannel backing;
+            try {
+                backing = AsynchronousFileChannel.open(Paths.get(backingName), StandardOpenOption.READ);
+            } catch (IOException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+
+            return read(backing, 0, dataStart)
+                    .thenCompose(backingMetadata -> readExtent(backing, backingMetadata.array(), start, length))
+                    .whenComplete((value, error) -> {
+                        try {
+                            backing.close();
+                        } catch (IOException e) {
+                            // nothing left to do, the data was read already
+                        }
+                    });
+        });
+    }
+
+    // reads length bytes at position, continues after short reads
+    private CompletableFuture<ByteBuffer> read(AsynchronousFileChannel image, long position, int length) {
+        CompletableFuture<ByteBuffer> future = new CompletableFuture<>();
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+
+        image.read(buffer, position, null, new CompletionHandler<Integer, Void>() {
+            @Override
+            public void completed(Integer count, Void attachment) {
+                if (count < 0) {
+                    future.completeExceptionally(new IOException("Unexpected end of filesystem " + fsName));
+                } else if (buffer.hasRemaining()) {
+                    image.read(buffer, position + buffer.position(), null, this);
+                } else {
+                    buffer.flip();
+                    future.complete(buffer);
+                }
+            }
+
+            @Override
+            public void failed(Throwable error, Void attachment) {
+                future.completeExceptionally(error);
+            }
+        });
+
+        return future;
+    }
+}
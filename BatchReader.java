@@ -0,0 +1,191 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Reads many files of one image in a row. Instead of one seek + read per file
+// (like catfs), the files are sorted by their start offset and neighbouring
+// extents are put together into runs that are read with one large sequential
+// read. While the caller works with the files of one run, a background thread
+// already reads the next runs.
+//
+// The files come back in the order of their start offset, not in the order of
+// the names that were asked for. Names that are not in the image are listed in
+// missing().
+public class BatchReader implements Iterator<Map.Entry<String, ByteBuffer>>, AutoCloseable {
+
+    // dead space between two extents that we rather read than seek over
+    private static final int MAX_GAP = 16 * 1024;
+
+    // a run is not made longer than this, so memory stays bounded
+    private static final int MAX_RUN = 4 * 1024 * 1024;
+
+    // one file inside a run
+    private static class Extent {
+        String name;
+        int start;
+        int length;
+    }
+
+    // extents that are read together with one read
+    private static class Run {
+        int start;
+        int end;
+        List<Extent> extents = new ArrayList<>();
+    }
+
+    private final RandomAccessFile filesys;
+    private final FileSystem layout = new FileSystem();
+    private final ExecutorService prefetcher = Executors.newSingleThreadExecutor();
+
+    private final Queue<Run> pending = new ArrayDeque<>();
+    private final Queue<Future<ByteBuffer>> prefetched = new ArrayDeque<>();
+    private final Queue<Run> prefetchedRuns = new ArrayDeque<>();
+    private final int prefetchRuns;
+    private final int backingLimit;
+    private final List<String> missing = new ArrayList<>();
+
+    // run the caller is working through at the moment
+    private Run current;
+    private ByteBuffer currentData;
+    private int currentIndex;
+
+    public BatchReader(String fsName, Collection<String> fileNames, int prefetchRuns) throws IOException {
+        if (prefetchRuns < 1) {
+            throw new IllegalArgumentException("prefetchRuns must be at least 1");
+        }
+        this.prefetchRuns = prefetchRuns;
+        this.filesys = new RandomAccessFile(fsName, "r");
+
+        // 1) Look up all files in one read of header + entry table
+        byte[] metadata = new byte[layout.metadataSize()];
+        filesys.seek(0);
+        filesys.readFully(metadata);
+        backingLimit = layout.backingLimit(metadata);
+
+        Collection<String> names = new LinkedHashSet<>(fileNames);
+        Map<String, int[]> located = layout.locate(metadata, names);
+
+        List<Extent> extents = new ArrayList<>();
+        for (String name : names) {
+            int[] found = located.get(name);
+            if (found == null) {
+                missing.add(name);
+                continue;
+            }
+            Extent extent = new Extent();
+            extent.name = name;
+            extent.start = found[0];
+            extent.length = found[1];
+            extents.add(extent);
+        }
+
+        // 2) Sort by start offset and put neighbours together into runs. Data of
+        // a clone below its backing limit comes from the backing image (which may
+        // be a clone itself), so each of these extents is read on its own.
+        extents.sort((a, b) -> Integer.compare(a.start, b.start));
+        Run run = null;
+        for (Extent extent : extents) {
+            if (extent.length == 0 && run != null) {
+                // an empty file reads nothing, its start may even lie after the
+                // end of the image (e.g. once the data after it was cut off)
+                extent.start = run.start;
+                run.extents.add(extent);
+                continue;
+            }
+            int end = extent.start + extent.length;
+            boolean shared = backingLimit != 0
+                    && (extent.start < backingLimit || (run != null && run.start < backingLimit));
+            if (run == null || shared || extent.start > run.end + MAX_GAP
+                    || Math.max(run.end, end) - run.start > MAX_RUN) {
+                run = new Run();
+                run.start = extent.start;
+                run.end = end;
+                pending.add(run);
+            }
+            run.end = Math.max(run.end, end);
+            run.extents.add(extent);
+        }
+
+        // 3) Start reading the first runs in the background
+        fillPrefetch();
+    }
+
+    // names that were asked for but are not active files of the image
+    public List<String> missing() {
+        return missing;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return (current != null && currentIndex < current.extents.size()) || !prefetchedRuns.isEmpty();
+    }
+
+    // next file: its name and its content (a read-only view into the run)
+    @Override
+    public Map.Entry<String, ByteBuffer> next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+
+        if (current == null || currentIndex >= current.extents.size()) {
+            current = prefetchedRuns.poll();
+            try {
+                currentData = prefetched.poll().get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Reading the files was interrupted", e);
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Reading the files failed: " + e.getCause().getMessage(),
+                        e.getCause());
+            }
+            currentIndex = 0;
+            fillPrefetch();
+        }
+
+        Extent extent = current.extents.get(currentIndex++);
+        ByteBuffer content = currentData.duplicate();
+        content.position(extent.start - current.start);
+        content.limit(extent.start - current.start + extent.length);
+        return new AbstractMap.SimpleImmutableEntry<>(extent.name, content.slice().asReadOnlyBuffer());
+    }
+
+    @Override
+    public void close() throws IOException {
+        prefetcher.shutdownNow();
+        filesys.close();
+    }
+
+    // keeps prefetchRuns reads in flight
+    private void fillPrefetch() {
+        while (prefetched.size() < prefetchRuns && !pending.isEmpty()) {
+            Run run = pending.poll();
+            prefetchedRuns.add(run);
+            prefetched.add(prefetcher.submit(() -> {
+                byte[] data = new byte[run.end - run.start];
+                if (backingLimit != 0 && run.start < backingLimit) {
+                    // lives in the backing image (a run like this has one extent)
+                    layout.readExtent(filesys, backingLimit, run.start, data);
+                } else {
+                    // one seek + one read for the whole run
+                    filesys.seek(run.start);
+                    filesys.readFully(data);
+                }
+                return ByteBuffer.wrap(data);
+            }));
+        }
+    }
+}
@@ -6,6 +6,7 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
@@ -18,6 +19,15 @@ public class FileSystem {
     private ByteBuffer entries;
     private ByteBuffer data;
 
+    // the entries buffer decoded into one array per field, scans use this one
+    private final EntryTable table = new EntryTable();
+
+    // parts of header / entries that changed since they were read in
+    // (byte range in the header, one bit per entry slot)
+    private int dirtyHeaderStart;
+    private int dirtyHeaderEnd;
+    private int dirtySlots;
+
     // ----- Basic layout sizes (from assignment) -----
 
     // size of header region [bytes]
@@ -29,8 +39,6 @@ public class FileSystem {
     // max number of file entries
     private final int maxFiles = 32;
 
-    private final int reserved2 = 26;
-
     // ----- Header field OFFSETS (bytes from start of file) -----
 
     // 8 bytes, ASCII "ZVFSDSK1"
@@ -44,9 +52,10 @@ public class FileSystem {
 
     private final int FLAGS_OFFSET = 9;
 
-    // 2 bytes, zero padding
+    // 2 bytes, header field "compaction_epoch" (was zero padding; increased by
+    // every dfrgfs that drops deleted entries, wraps around after 65535)
 
-    private final int RESERVED0_OFFSET = 10;
+    private final int COMPACTION_EPOCH_OFFSET = 10;
 
     // 2 bytes, number of active (non-deleted) files
 
@@ -77,16 +86,41 @@ public class FileSystem {
     // 2 bytes, header field "deleted_files"
     private final int DELETED_FILES_OFFSET = 36;
 
-    // 26 bytes, zero padding (reserved2)
-    private final int RESERVED2_OFFSET = 38;
+    // 4 bytes, header field "snapshot_offset" (0 = no snapshot taken)
+    private final int SNAPSHOT_OFFSET = 38;
+
+    // 4 bytes, header field "backing_limit" (0 = image is not a clone)
+    private final int BACKING_LIMIT_OFFSET = 42;
+
+    // 4 bytes, header field "dead_bytes" (data after the frozen limit that no
+    // active file uses anymore, dfrgfs can give it back)
+    private final int DEAD_BYTES_OFFSET = 46;
+
+    // 2 bytes, header field "fragmentation" (dead_bytes per mille of the data
+    // after the frozen limit)
+    private final int FRAGMENTATION_OFFSET = 50;
+
+    // 2 bytes, header field "auto_defrag_threshold" (per mille, 0 = off)
+    private final int AUTO_DEFRAG_THRESHOLD_OFFSET = 52;
+
+    // 4 bytes, header field "auto_defrag_budget" (bytes moved per operation)
+    private final int AUTO_DEFRAG_BUDGET_OFFSET = 54;
+
+    // 4 bytes, header field "change_counter" (increased by every addfs, rmfs and
+    // writefs, the new value is stored in the changed entry)
+    private final int CHANGE_COUNTER_OFFSET = 58;
+
+    // 2 bytes, header field "pack_limit" (files up to this size [bytes] are packed
+    // into shared segments, 0 = off)
+    private final int PACK_LIMIT_OFFSET = 62;
 
     // should be dead code if we are sure about our offsets
     public void assert_header_layout() {
         try {
             assert MAGIC_OFFSET + 8 == VERSION_OFFSET : "Check that VERSION_OFFSET is correct";
             assert VERSION_OFFSET + 1 == FLAGS_OFFSET : "Check that FLAGS_OFFSET is correct";
-            assert FLAGS_OFFSET + 1 == RESERVED0_OFFSET : "Check that RESERVED0_OFFSET is correct";
-            assert RESERVED0_OFFSET + 2 == FILE_COUNT_OFFSET : "Check that FILE_COUNT_OFFSET is correct";
+            assert FLAGS_OFFSET + 1 == COMPACTION_EPOCH_OFFSET : "Check that COMPACTION_EPOCH_OFFSET is correct";
+            assert COMPACTION_EPOCH_OFFSET + 2 == FILE_COUNT_OFFSET : "Check that FILE_COUNT_OFFSET is correct";
             assert FILE_COUNT_OFFSET + 2 == FILE_CAPACITY_OFFSET : "Check that FILE_CAPACITY_OFFSET is correct";
             assert FILE_CAPACITY_OFFSET + 2 == FILE_ENTRY_SIZE_OFFSET : "Check that FILE_ENTRY_SIZE_OFFSET is correct";
             assert FILE_ENTRY_SIZE_OFFSET + 2 == RESERVED1_OFFSET : "Check that RESERVED1_OFFSET is correct";
@@ -97,8 +131,17 @@ public class FileSystem {
                     : "Check that NEXT_FREE_OFFSET_OFFSET is correct";
             assert NEXT_FREE_OFFSET_OFFSET + 4 == FREE_ENTRY_OFFSET : "Check that FREE_ENTRY_OFFSET is correct";
             assert FREE_ENTRY_OFFSET + 4 == DELETED_FILES_OFFSET : "Check that DELETED_FILES_OFFSET is correct";
-            assert DELETED_FILES_OFFSET + 2 == RESERVED2_OFFSET : "Check that RESERVED2_OFFSET is correct";
-            assert RESERVED2_OFFSET + reserved2 == headerSize
+            assert DELETED_FILES_OFFSET + 2 == SNAPSHOT_OFFSET : "Check that SNAPSHOT_OFFSET is correct";
+            assert SNAPSHOT_OFFSET + 4 == BACKING_LIMIT_OFFSET : "Check that BACKING_LIMIT_OFFSET is correct";
+            assert BACKING_LIMIT_OFFSET + 4 == DEAD_BYTES_OFFSET : "Check that DEAD_BYTES_OFFSET is correct";
+            assert DEAD_BYTES_OFFSET + 4 == FRAGMENTATION_OFFSET : "Check that FRAGMENTATION_OFFSET is correct";
+            assert FRAGMENTATION_OFFSET + 2 == AUTO_DEFRAG_THRESHOLD_OFFSET
+                    : "Check that AUTO_DEFRAG_THRESHOLD_OFFSET is correct";
+            assert AUTO_DEFRAG_THRESHOLD_OFFSET + 2 == AUTO_DEFRAG_BUDGET_OFFSET
+                    : "Check that AUTO_DEFRAG_BUDGET_OFFSET is correct";
+            assert AUTO_DEFRAG_BUDGET_OFFSET + 4 == CHANGE_COUNTER_OFFSET : "Check that CHANGE_COUNTER_OFFSET is correct";
+            assert CHANGE_COUNTER_OFFSET + 4 == PACK_LIMIT_OFFSET : "Check that PACK_LIMIT_OFFSET is correct";
+            assert PACK_LIMIT_OFFSET + 2 == headerSize
                     : "Check that headerSize is correct and matches total size";
         } catch (AssertionError e) {
             System.out.println("Header layout assertion failed: " + e.getMessage());
@@ -124,6 +167,11 @@ public class FileSystem {
     // version of the filesystem format
     private final int VERSION_VALUE = 1;
 
+    // format version of an image with frozen data (a snapshot, or a clone whose
+    // data partly lives in the backing image), tools that only know version 1
+    // must not defragment it or read its data
+    private final int VERSION_FROZEN = 2;
+
     // alignment for data region (all file data must be 64-byte aligned)
     private final int ALIGNMENT = 64;
 
@@ -131,7 +179,8 @@ public class FileSystem {
     // needed since our offset fields are 4 bytes only (--> max 2^32= 4GB)
     private final long MAX_FS_SIZE = 4L * 1024 * 1024 * 1024L; // 4 GiB
 
-    private final int reserved1_file_entry = 12;
+    // a packed segment is not made longer than this (one page, read with one I/O)
+    private final int SEGMENT_SIZE = 4096;
 
     // ----- Offsets inside a single 64-byte file entry -----
 
@@ -156,8 +205,15 @@ public class FileSystem {
     // 8-byte UNIX timestamp
     private final int ENTRY_CREATED_OFFSET = 44; // 8 bytes
 
-    // 12 bytes reserved tail
-    private final int ENTRY_TAIL_OFFSET = 52; // 12 bytes reserved
+    // 4-byte change sequence (value of "change_counter" at the last change)
+    private final int ENTRY_SEQUENCE_OFFSET = 52; // 4 bytes
+
+    // 4-byte start offset of the packed segment the file lives in (0 = the file
+    // has its own 64-byte aligned extent)
+    private final int ENTRY_SEGMENT_OFFSET = 56; // 4 bytes
+
+    // 4-byte offset of the file data inside its segment (start = segment + this)
+    private final int ENTRY_SEGMENT_POS_OFFSET = 60; // 4 bytes
 
     public void assert_file_entry() {
         try {
@@ -168,8 +224,11 @@ public class FileSystem {
             assert ENTRY_TYPE_OFFSET + 1 == ENTRY_FLAG_OFFSET : "Check that ENTRY_FLAG_OFFSET is correct";
             assert ENTRY_FLAG_OFFSET + 1 == ENTRY_RESERVED_OFFSET : "Check that ENTRY_RESERVED_OFFSET is correct";
             assert ENTRY_RESERVED_OFFSET + 2 == ENTRY_CREATED_OFFSET : "Check that ENTRY_CREATED_OFFSET is correct";
-            assert ENTRY_CREATED_OFFSET + 8 == ENTRY_TAIL_OFFSET : "Check that ENTRY_TAIL_OFFSET is correct";
-            assert ENTRY_TAIL_OFFSET + reserved1_file_entry == entrySize
+            assert ENTRY_CREATED_OFFSET + 8 == ENTRY_SEQUENCE_OFFSET : "Check that ENTRY_SEQUENCE_OFFSET is correct";
+            assert ENTRY_SEQUENCE_OFFSET + 4 == ENTRY_SEGMENT_OFFSET : "Check that ENTRY_SEGMENT_OFFSET is correct";
+            assert ENTRY_SEGMENT_OFFSET + 4 == ENTRY_SEGMENT_POS_OFFSET
+                    : "Check that ENTRY_SEGMENT_POS_OFFSET is correct";
+            assert ENTRY_SEGMENT_POS_OFFSET + 4 == entrySize
                     : "Check that entrySize is correct and matches total size";
         } catch (AssertionError e) {
             System.out.println("File entry layout assertion failed: " + e.getMessage());
@@ -203,6 +262,421 @@ public class FileSystem {
         assert_file_entry();
     }
 
+    // The entry table split up into columns: one primitive array per field instead
+    // of 64-byte records, the names packed one after another (32 bytes each). A
+    // scan over one field (flags, start, ...) only touches that array and needs
+    // no byte[] / String per slot. load() decodes the on-disk layout, store()
+    // encodes it back, so the entries buffer is still what goes to disk.
+    private class EntryTable {
+        final byte[] names = new byte[maxFiles * 32];
+        final int[] nameLength = new int[maxFiles]; // 0 = empty slot
+        final int[] start = new int[maxFiles];
+        final int[] length = new int[maxFiles];
+        final byte[] type = new byte[maxFiles];
+        final byte[] flag = new byte[maxFiles];
+        final short[] reserved = new short[maxFiles];
+        final long[] created = new long[maxFiles];
+        final int[] sequence = new int[maxFiles];
+        final int[] segment = new int[maxFiles]; // 0 = not packed
+        final int[] segmentPos = new int[maxFiles];
+
+        // decodes all slots of a table that begins at "offset" in buffer
+        void load(ByteBuffer buffer, int offset) {
+            for (int i = 0; i < maxFiles; i++) {
+                int base = offset + i * entrySize;
+                buffer.position(base + ENTRY_NAME_OFFSET);
+                buffer.get(names, i * 32, 32);
+
+                int n = 0;
+                while (n < 32 && names[i * 32 + n] != 0) {
+                    n++;
+                }
+                nameLength[i] = n;
+
+                start[i] = buffer.getInt(base + ENTRY_START_OFFSET);
+                length[i] = buffer.getInt(base + ENTRY_LENGTH_OFFSET);
+                type[i] = buffer.get(base + ENTRY_TYPE_OFFSET);
+                flag[i] = buffer.get(base + ENTRY_FLAG_OFFSET);
+                reserved[i] = buffer.getShort(base + ENTRY_RESERVED_OFFSET);
+                created[i] = buffer.getLong(base + ENTRY_CREATED_OFFSET);
+                sequence[i] = buffer.getInt(base + ENTRY_SEQUENCE_OFFSET);
+                segment[i] = buffer.getInt(base + ENTRY_SEGMENT_OFFSET);
+                segmentPos[i] = buffer.getInt(base + ENTRY_SEGMENT_POS_OFFSET);
+            }
+        }
+
+        // encodes one slot into the entries buffer
+        void store(ByteBuffer buffer, int slot) {
+            int base = slot * entrySize;
+            buffer.position(base + ENTRY_NAME_OFFSET);
+            buffer.put(names, slot * 32, 32);
+            buffer.putInt(base + ENTRY_START_OFFSET, start[slot]);
+            buffer.putInt(base + ENTRY_LENGTH_OFFSET, length[slot]);
+            buffer.put(base + ENTRY_TYPE_OFFSET, type[slot]);
+            buffer.put(base + ENTRY_FLAG_OFFSET, flag[slot]);
+            buffer.putShort(base + ENTRY_RESERVED_OFFSET, reserved[slot]);
+            buffer.putLong(base + ENTRY_CREATED_OFFSET, created[slot]);
+            buffer.putInt(base + ENTRY_SEQUENCE_OFFSET, sequence[slot]);
+            buffer.putInt(base + ENTRY_SEGMENT_OFFSET, segment[slot]);
+            buffer.putInt(base + ENTRY_SEGMENT_POS_OFFSET, segmentPos[slot]);
+        }
+
+        void store(ByteBuffer buffer) {
+            for (int i = 0; i < maxFiles; i++) {
+                store(buffer, i);
+            }
+        }
+
+        // empties a slot (all fields 0)
+        void clear(int slot) {
+            Arrays.fill(names, slot * 32, slot * 32 + 32, (byte) 0);
+            nameLength[slot] = 0;
+            start[slot] = 0;
+            length[slot] = 0;
+            type[slot] = 0;
+            flag[slot] = 0;
+            reserved[slot] = 0;
+            created[slot] = 0;
+            sequence[slot] = 0;
+            segment[slot] = 0;
+            segmentPos[slot] = 0;
+        }
+
+        // name has to be at most 31 bytes (null-terminated)
+        void setName(int slot, byte[] name) {
+            Arrays.fill(names, slot * 32, slot * 32 + 32, (byte) 0);
+            System.arraycopy(name, 0, names, slot * 32, name.length);
+            nameLength[slot] = name.length;
+        }
+
+        String name(int slot) {
+            return new String(names, slot * 32, nameLength[slot], StandardCharsets.UTF_8);
+        }
+
+        boolean isEmpty(int slot) {
+            return nameLength[slot] == 0;
+        }
+
+        boolean isActive(int slot) {
+            return nameLength[slot] != 0 && flag[slot] != 1;
+        }
+
+        // first slot with this name (deleted ones only if activeOnly is false), or -1
+        int find(String fileName, boolean activeOnly) {
+            byte[] name = fileName.getBytes(StandardCharsets.UTF_8);
+            for (int i = 0; i < maxFiles; i++) {
+                if (nameLength[i] != name.length || (activeOnly && flag[i] == 1)) {
+                    continue;
+                }
+                if (Arrays.equals(names, i * 32, i * 32 + name.length, name, 0, name.length)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        // first empty slot at or after "from", or -1
+        int firstEmpty(int from) {
+            for (int i = Math.max(0, from); i < maxFiles; i++) {
+                if (nameLength[i] == 0) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        // length of the file in the slot including its padding
+        int alignedLength(int slot) {
+            return length[slot] + (ALIGNMENT - (length[slot] % ALIGNMENT)) % ALIGNMENT;
+        }
+
+        boolean isPacked(int slot) {
+            return segment[slot] != 0;
+        }
+
+        // bytes that become dead when the file goes away: a packed file only gives
+        // back its own bytes, a file with its own extent also its padding
+        int footprint(int slot) {
+            return isPacked(slot) ? length[slot] : alignedLength(slot);
+        }
+
+        // active data at or after "from" as extents sorted by start offset, all
+        // active files of a packed segment make up one extent (starting at the
+        // segment), so they are only ever moved together
+        java.util.List<Extent> extentsByStart(int from) {
+            java.util.TreeMap<Integer, Extent> byStart = new java.util.TreeMap<>();
+            for (int i = 0; i < maxFiles; i++) {
+                if (!isActive(i) || start[i] < from) {
+                    continue;
+                }
+                Extent extent = byStart.computeIfAbsent(isPacked(i) ? segment[i] : start[i], key -> {
+                    Extent e = new Extent();
+                    e.start = key;
+                    e.used = key;
+                    return e;
+                });
+                extent.used = Math.max(extent.used, start[i] + length[i]);
+                extent.end = extent.used + (ALIGNMENT - (extent.used % ALIGNMENT)) % ALIGNMENT;
+                extent.slots.add(i);
+            }
+            return new java.util.ArrayList<>(byStart.values());
+        }
+    }
+
+    // data that is moved as one piece: the extent of one file, or a packed
+    // segment with all its active files
+    private static class Extent {
+        int start;
+        int used; // end of the data of the last file in it
+        int end; // "used" rounded up to the 64-byte alignment
+        java.util.List<Integer> slots = new java.util.ArrayList<>();
+    }
+
+    // size of header + entry table, what has to be read in to look up a file
+    protected int metadataSize() {
+        return DATA_START;
+    }
+
+    // {active files, deleted files, capacity} of an image, the numbers gifs shows
+    protected int[] headerCounts(String fsName) throws IOException {
+        try (RandomAccessFile filesys = new RandomAccessFile(fsName, "r")) {
+            header.clear();
+            filesys.seek(0);
+            filesys.readFully(header.array());
+        }
+        return new int[] { header.getShort(FILE_COUNT_OFFSET),
+                header.getShort(DELETED_FILES_OFFSET),
+                header.getShort(FILE_CAPACITY_OFFSET) };
+    }
+
+    // header field "backing_limit" of header + entry table as read from disk
+    protected int backingLimit(byte[] metadata) {
+        ByteBuffer buffer = ByteBuffer.wrap(metadata);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        return buffer.getInt(BACKING_LIMIT_OFFSET);
+    }
+
+    // looks up an active file in header + entry table as read from disk and
+    // returns {start, length}, or null if it is not there
+    protected int[] locate(byte[] metadata, String fileName) {
+        return locate(metadata, java.util.List.of(fileName)).get(fileName);
+    }
+
+    // same as above for many files, the entry table is only decoded once; files
+    // that are not there are missing in the map
+    protected java.util.Map<String, int[]> locate(byte[] metadata, java.util.Collection<String> fileNames) {
+        ByteBuffer buffer = ByteBuffer.wrap(metadata);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+        EntryTable metadataTable = new EntryTable();
+        metadataTable.load(buffer, FILE_TABLE_START);
+
+        java.util.Map<String, int[]> found = new java.util.HashMap<>();
+        for (String fileName : fileNames) {
+            int slot = metadataTable.find(fileName, true);
+            if (slot != -1) {
+                found.put(fileName, new int[] { metadataTable.start[slot], metadataTable.length[slot] });
+            }
+        }
+        return found;
+    }
+
+    // marks a range of header bytes that has to be written back by flushDirty
+    private void markHeaderDirty(int offset, int length) {
+        if (dirtyHeaderEnd == 0) {
+            dirtyHeaderStart = offset;
+            dirtyHeaderEnd = offset + length;
+        } else {
+            dirtyHeaderStart = Math.min(dirtyHeaderStart, offset);
+            dirtyHeaderEnd = Math.max(dirtyHeaderEnd, offset + length);
+        }
+    }
+
+    // marks an entry slot that has to be written back by flushDirty
+    // (the slot is encoded from the table into the entries buffer right away)
+    private void markSlotDirty(int slot) {
+        table.store(entries, slot);
+        dirtySlots |= 1 << slot;
+    }
+
+    // Writes the dirty header range, the dirty entry slots and the given data
+    // buffers (written one after another at dataOffset). Ranges that touch each
+    // other are put into one gathering write. The runs are written from the end of
+    // the file to the start, so the header is always written last.
+    private void flushDirty(FileChannel channel, long dataOffset, ByteBuffer... data) throws IOException {
+        java.util.List<Long> positions = new java.util.ArrayList<>();
+        java.util.List<ByteBuffer> buffers = new java.util.ArrayList<>();
+
+        if (dirtyHeaderEnd > dirtyHeaderStart) {
+            positions.add((long) dirtyHeaderStart);
+            buffers.add(ByteBuffer.wrap(header.array(), dirtyHeaderStart, dirtyHeaderEnd - dirtyHeaderStart));
+        }
+
+        // neighbouring dirty slots become one range
+        int slot = 0;
+        while (slot < maxFiles) {
+            if ((dirtySlots & (1 << slot)) == 0) {
+                slot++;
+                continue;
+            }
+            int first = slot;
+            while (slot < maxFiles && (dirtySlots & (1 << slot)) != 0) {
+                slot++;
+            }
+            positions.add((long) FILE_TABLE_START + first * entrySize);
+            buffers.add(ByteBuffer.wrap(entries.array(), first * entrySize, (slot - first) * entrySize));
+        }
+
+        long position = dataOffset;
+        for (ByteBuffer buffer : data) {
+            if (buffer.remaining() > 0) {
+                positions.add(position);
+                buffers.add(buffer);
+                position += buffer.remaining();
+            }
+        }
+
+        // group ranges that follow each other directly into runs (the lists are
+        // already sorted: header < entry table < data)
+        java.util.List<Long> runStarts = new java.util.ArrayList<>();
+        java.util.List<java.util.List<ByteBuffer>> runs = new java.util.ArrayList<>();
+        long runEnd = -1;
+        for (int i = 0; i < positions.size(); i++) {
+            long start = positions.get(i);
+            if (start != runEnd) {
+                runStarts.add(start);
+                runs.add(new java.util.ArrayList<>());
+            }
+            runs.get(runs.size() - 1).add(buffers.get(i));
+            runEnd = start + buffers.get(i).remaining();
+        }
+
+        for (int r = runs.size() - 1; r >= 0; r--) {
+            ByteBuffer[] run = runs.get(r).toArray(new ByteBuffer[0]);
+            long remaining = 0;
+            for (ByteBuffer buffer : run) {
+                remaining += buffer.remaining();
+            }
+            channel.position(runStarts.get(r));
+            while (remaining > 0) {
+                remaining -= channel.write(run);
+            }
+        }
+
+        dirtyHeaderStart = 0;
+        dirtyHeaderEnd = 0;
+        dirtySlots = 0;
+    }
+
+    // everything below this offset is referenced by a snapshot or lives in the
+    // backing image of a clone, so it must never be overwritten or moved
+    // (header has to be read in already)
+    private int frozenLimit() {
+        int limit = DATA_START;
+        int snapshotOffset = header.getInt(SNAPSHOT_OFFSET);
+        if (snapshotOffset != 0) {
+            limit = Math.max(limit, snapshotOffset + entrySize * maxFiles);
+        }
+        int backingLimit = header.getInt(BACKING_LIMIT_OFFSET);
+        if (backingLimit != 0) {
+            limit = Math.max(limit, backingLimit);
+        }
+        return limit;
+    }
+
+    // adds delta to dead_bytes and recomputes the fragmentation ratio
+    // (header has to be read in already)
+    private void addDeadBytes(int delta) {
+        int deadBytes = Math.max(0, header.getInt(DEAD_BYTES_OFFSET) + delta);
+        int used = Math.max(1, header.getInt(NEXT_FREE_OFFSET_OFFSET) - frozenLimit());
+        int fragmentation = (int) Math.min(1000, deadBytes * 1000L / used);
+
+        header.putInt(DEAD_BYTES_OFFSET, deadBytes);
+        header.putShort(FRAGMENTATION_OFFSET, (short) fragmentation);
+        markHeaderDirty(DEAD_BYTES_OFFSET, 6);
+    }
+
+    // increases change_counter and stores the new value in the changed entry
+    // (header + entries have to be read in already)
+    private void recordChange(int slot) {
+        int sequence = header.getInt(CHANGE_COUNTER_OFFSET) + 1;
+        header.putInt(CHANGE_COUNTER_OFFSET, sequence);
+        markHeaderDirty(CHANGE_COUNTER_OFFSET, 4);
+        table.sequence[slot] = sequence;
+        markSlotDirty(slot);
+    }
+
+    // Place of a new small file if packing is on: {segment, start}. The file goes
+    // directly after the last active file of the segment at the end of the data region
+    // if that segment still has room, else it opens a new segment at
+    // next_free_offset. null if the file is not packed (packing off, too big).
+    // (header + entries have to be read in already)
+    private int[] packPlace(long size) {
+        int packLimit = header.getShort(PACK_LIMIT_OFFSET) & 0xFFFF;
+        if (packLimit == 0 || size == 0 || size > packLimit) {
+            return null;
+        }
+
+        int nextFree = header.getInt(NEXT_FREE_OFFSET_OFFSET);
+        int frozen = frozenLimit();
+
+        // the active file whose data ends last before next_free_offset; deleted
+        // entries only count as used bytes (their segment fields may be stale and
+        // their bytes are already counted as dead), new data never continues them
+        int last = -1;
+        int activeEnd = 0;
+        int usedEnd = 0;
+        for (int i = 0; i < maxFiles; i++) {
+            if (table.isEmpty(i) || table.start[i] < frozen || table.start[i] >= nextFree) {
+                continue;
+            }
+            int end = table.start[i] + table.length[i];
+            usedEnd = Math.max(usedEnd, end);
+            if (table.isActive(i) && end > activeEnd) {
+                last = i;
+                activeEnd = end;
+            }
+        }
+
+        if (last != -1 && activeEnd == usedEnd && table.isPacked(last)
+                && table.segment[last] >= frozen && table.segment[last] <= table.start[last]
+                && activeEnd + (ALIGNMENT - (activeEnd % ALIGNMENT)) % ALIGNMENT == nextFree
+                && activeEnd + size - table.segment[last] <= SEGMENT_SIZE) {
+            return new int[] { table.segment[last], activeEnd };
+        }
+        return new int[] { nextFree, nextFree };
+    }
+
+    // a clone stores the name of its backing image (null-terminated) at
+    // DATA_START, this region is never used for file data in a clone
+    private String readBackingName(RandomAccessFile filesys) throws IOException {
+        byte[] nameBytes = new byte[entrySize * maxFiles];
+        filesys.seek(DATA_START);
+        filesys.readFully(nameBytes);
+        return new String(nameBytes, StandardCharsets.UTF_8).split("\0", 2)[0];
+    }
+
+    // reads file data at "start" into content, following the chain of backing
+    // images if the data belongs to the image a clone was made from
+    // (backingLimit is the header field of filesys, the caller has read it in
+    // already; only the header of a backing image is read here)
+    protected void readExtent(RandomAccessFile filesys, int backingLimit, int start, byte[] content)
+            throws IOException {
+        if (backingLimit != 0 && start < backingLimit) {
+            try (RandomAccessFile backing = new RandomAccessFile(readBackingName(filesys), "r")) {
+                ByteBuffer head = ByteBuffer.allocate(headerSize);
+                head.order(ByteOrder.LITTLE_ENDIAN);
+                backing.seek(0);
+                backing.readFully(head.array());
+                readExtent(backing, head.getInt(BACKING_LIMIT_OFFSET), start, content);
+            }
+            return;
+        }
+
+        filesys.seek(start);
+        filesys.readFully(content);
+    }
+
     protected String mkfs(String fsName) {
         layout_assertions();
 
@@ -220,7 +694,14 @@ public class FileSystem {
         int nextFreeOffset = DATA_START;
         int freeEntryOffset = FILE_TABLE_START;
         short deletedFiles = 0;
-        byte[] reserved2 = new byte[26];
+        int snapshotOffset = 0;
+        int backingLimit = 0;
+        int deadBytes = 0;
+        short fragmentation = 0;
+        short autoDefragThreshold = 0;
+        int autoDefragBudget = 0;
+        int changeCounter = 0;
+        short packLimit = 0;
 
         // put() pushes bytes onto a ByteBuffer
         this.header.put(magic);
@@ -240,8 +721,15 @@ public class FileSystem {
         header.putInt(freeEntryOffset);
 
         header.putShort(deletedFiles);
+        header.putInt(snapshotOffset);
+        header.putInt(backingLimit);
+        header.putInt(deadBytes);
+        header.putShort(fragmentation);
+        header.putShort(autoDefragThreshold);
+        header.putInt(autoDefragBudget);
+        header.putInt(changeCounter);
+        header.putShort(packLimit);
 
-        header.put(reserved2);
         // how to write to a file
         try (FileOutputStream fos = new FileOutputStream(fsName)) {
             fos.write(header.array(), 0, headerSize); // need to write whole array, only headerSize bytes
@@ -258,7 +746,9 @@ public class FileSystem {
         byte flag = 0;
         short reserved3 = 0;
         long timestamp = 0;
-        byte[] reserved4 = new byte[12];
+        int sequence = 0;
+        int segment = 0;
+        int segmentPos = 0;
 
         for (int i = 0; i < maxFiles; i++) {
             byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
@@ -270,7 +760,9 @@ public class FileSystem {
             entries.put(flag);
             entries.putShort(reserved3);
             entries.putLong(timestamp);
-            entries.put(reserved4);
+            entries.putInt(sequence);
+            entries.putInt(segment);
+            entries.putInt(segmentPos);
 
         }
 
@@ -307,43 +799,64 @@ public class FileSystem {
                     - number_of_files
                     - number_of_deleted;
             long total_size = filesys.length(); // in bytes
+            int snapshot_offset = header.getInt(SNAPSHOT_OFFSET);
+            int backing_limit = header.getInt(BACKING_LIMIT_OFFSET);
             // chose a different display than python version
             output = "File System: " + fsName + "\n" +
                     "Number of active files: " + number_of_files + "\n" +
                     "Number of deleted files: " + number_of_deleted + "\n" +
                     "Free entries for new files: " + free_entries + "\n" +
                     "Total size of the file: " + total_size + " bytes";
+            int dead_bytes = header.getInt(DEAD_BYTES_OFFSET);
+            int fragmentation = header.getShort(FRAGMENTATION_OFFSET) & 0xFFFF;
+            int threshold = header.getShort(AUTO_DEFRAG_THRESHOLD_OFFSET) & 0xFFFF;
+            output += "\nDead data: " + dead_bytes + " bytes (fragmentation " + (fragmentation / 10.0) + " %)";
+            if (threshold != 0) {
+                output += "\nAuto defrag: from " + (threshold / 10.0) + " % fragmentation, moving at most "
+                        + header.getInt(AUTO_DEFRAG_BUDGET_OFFSET) + " bytes per operation";
+            }
+            int pack_limit = header.getShort(PACK_LIMIT_OFFSET) & 0xFFFF;
+            if (pack_limit != 0) {
+                output += "\nPacking files up to " + pack_limit + " bytes into segments of "
+                        + SEGMENT_SIZE + " bytes";
+            }
+            if (snapshot_offset != 0) {
+                output += "\nSnapshot table at offset: " + snapshot_offset;
+            }
+            if (backing_limit != 0) {
+                output += "\nClone of: " + readBackingName(filesys) + " (shared data up to offset "
+                        + backing_limit + ")";
+            }
         }
         return output;
     }
 
     protected String addfs(String fsName, String fileName) throws IOException {
+        // read in the data of the file on disk
+        byte[] content = Files.readAllBytes(Paths.get(fileName));
+        return addfs(fsName, fileName, content);
+    }
+
+    // same as addfs above, but the file content is already in memory
+    protected String addfs(String fsName, String fileName, byte[] content) throws IOException {
         layout_assertions();
 
         String output = "Added file " + fileName + " to filesystem " + fsName;
 
         // File size to add
-        File insertFile = new File(fileName);
-        long size = insertFile.length();
-        int padding = (int) ((64 - (size % 64)) % 64);
+        long size = content.length;
 
         // first we have to read in the data from the file
 
         try (FileInputStream fis = new FileInputStream(fsName)) {
             fis.readNBytes(header.array(), 0, header.capacity());
             fis.readNBytes(entries.array(), 0, entries.capacity());
+            table.load(entries, 0);
 
-            // check if our file is already in the filesystem
-            for (int i = 0; i < maxFiles; i++) {
-                byte[] filename = new byte[32];
-                entries.position(entrySize * i);
-                entries.get(filename);
-
-                String filenameString = new String(filename, StandardCharsets.UTF_8).trim();
-
-                if (filenameString.equals(fileName)) {
-                    return "File " + fileName + " already in filesystem. Change name to insert file.";
-                }
+            // check if our file is already in the filesystem (a deleted file of
+            // the same name is replaced below)
+            if (table.find(fileName, true) != -1) {
+                return "File " + fileName + " already in filesystem. Change name to insert file.";
             }
 
             File fileSystem = new File(fsName);
@@ -359,46 +872,50 @@ public class FileSystem {
             System.out.println("An error occurred: " + e.getMessage());
         }
 
+        // a deleted entry of the same name gets the new file, so the name stays
+        // unique and replaying a deletion and a new add of a name works; its old
+        // data was already counted as dead by rmfs
+        int deletedSlot = table.find(fileName, false);
+
         // we can now access all our field directly:
         // we stick to our python implementation:
         byte flags = header.get(FLAGS_OFFSET);
-        if (flags == 1) {
+        if (flags == 1 && deletedSlot == -1) {
             return "Cannot insert file in already full filesystem";
         }
 
         // free entry
         int freeEntryOffset = header.getInt(FREE_ENTRY_OFFSET);
-        if (freeEntryOffset == 0) {
+        if (freeEntryOffset == 0 && deletedSlot == -1) {
             return "No file entries available anymore";
         }
 
         int fileCount = header.getShort(FILE_COUNT_OFFSET) & 0xFFFF;
         int nextFreeOffset = header.getInt(NEXT_FREE_OFFSET_OFFSET);
 
-        int counter = 1;
-        int freeEntryOffsetNew = 0;
-
-        while (counter < maxFiles) {
-            int nextEntryOffset = freeEntryOffset + entrySize * counter;
-            if (nextEntryOffset >= headerSize + maxFiles * entrySize) {
-                break;
-            }
-            byte[] filename = new byte[32];
-            entries.position(nextEntryOffset);
-            entries.get(filename);
-
-            boolean isEmpty = Arrays.equals(filename, new byte[32]);
-
-            if (isEmpty) {
-                freeEntryOffsetNew = nextEntryOffset;
-                break;
-            }
-
-            counter++;
+        // small files may be packed into a segment (not 64-byte aligned then), all
+        // other files start at next_free_offset
+        int[] place = packPlace(size);
+        int start = place == null ? nextFreeOffset : place[1];
+        int padding = (int) ((ALIGNMENT - ((start + size) % ALIGNMENT)) % ALIGNMENT);
+
+        // the entry at free_entry_offset (absolute, like in python and dfrgfs) gets
+        // the new file, then we look for the next empty slot after it (older images
+        // may point at a used slot, so we skip forward to an empty one first)
+        int slot = deletedSlot != -1 ? deletedSlot
+                : table.firstEmpty((freeEntryOffset - FILE_TABLE_START) / entrySize);
+        if (slot == -1) {
+            return "No empty file entry in this filesystem";
         }
 
-        if (counter >= maxFiles) {
-            return "No empty file entry in this filesystem";
+        int freeEntryOffsetNew = freeEntryOffset;
+        if (deletedSlot == -1) {
+            int nextEmpty = table.firstEmpty(slot + 1);
+            freeEntryOffsetNew = nextEmpty == -1 ? 0 : FILE_TABLE_START + nextEmpty * entrySize;
+        } else {
+            int deletedFiles = header.getShort(DELETED_FILES_OFFSET) & 0xFFFF;
+            header.putShort(DELETED_FILES_OFFSET, (short) Math.max(0, deletedFiles - 1));
+            markHeaderDirty(DELETED_FILES_OFFSET, 2);
         }
 
         byte[] filenameBytes = fileName.getBytes(StandardCharsets.UTF_8);
@@ -406,29 +923,22 @@ public class FileSystem {
             return "File name must not exceed 31 characters. Please change filename";
         }
 
-        // write new filename --> ENTRY_NAME_OFFSET is 0
-        entries.position(freeEntryOffsetNew + ENTRY_NAME_OFFSET);
-        entries.put(filenameBytes);
-        entries.put(new byte[32 - filenameBytes.length]);
-
-        // the point where the actual data begins
-        entries.position(freeEntryOffsetNew + ENTRY_START_OFFSET);
-        entries.putInt(nextFreeOffset);
-
-        // the file size
-        entries.position(freeEntryOffsetNew + ENTRY_LENGTH_OFFSET);
-        entries.putInt((int) (size)); //removed padding, file size should be without padding
-
-        // timestamp
-        entries.position(freeEntryOffsetNew + ENTRY_CREATED_OFFSET);
-        entries.putLong(System.currentTimeMillis() / 1000L);
-
-        // finally read in the data
-        byte[] content = Files.readAllBytes(Paths.get(fileName));
+        // new filename, the point where the actual data begins, the file size and
+        // the timestamp (recordChange writes the slot into the entries buffer)
+        table.clear(slot);
+        table.setName(slot, filenameBytes);
+        table.start[slot] = start;
+        table.length[slot] = (int) size; //removed padding, file size should be without padding
+        table.created[slot] = System.currentTimeMillis() / 1000L;
+        if (place != null) {
+            table.segment[slot] = place[0];
+            table.segmentPos[slot] = start - place[0];
+        }
+        recordChange(slot);
 
         // finally we treat the metadata
         header.putShort(FILE_COUNT_OFFSET, (short) (fileCount + 1));
-        header.putInt(NEXT_FREE_OFFSET_OFFSET, nextFreeOffset + content.length + padding);
+        header.putInt(NEXT_FREE_OFFSET_OFFSET, start + content.length + padding);
         header.putInt(FREE_ENTRY_OFFSET, freeEntryOffsetNew);
 
         // flag handling not essentially needed, since we check if flag is 0 or 1 when
@@ -441,24 +951,23 @@ public class FileSystem {
             flag = 0;
         }
         header.put(flag);
+        markHeaderDirty(FLAGS_OFFSET, FREE_ENTRY_OFFSET + 4 - FLAGS_OFFSET);
+        addDeadBytes(0); // more data -> smaller fragmentation ratio
 
-        // heaader, entries data save to file
+        // data, entry and header save to file (only the dirty parts)
         try (RandomAccessFile filesys = new RandomAccessFile(fsName, "rw")) {
-            filesys.seek(0);
-            filesys.write(header.array(), 0, headerSize);
-            filesys.write(entries.array(), 0, entrySize * maxFiles);
+            FileChannel channel = filesys.getChannel();
 
             int filesysLength = header.getInt(NEXT_FREE_OFFSET_OFFSET);
-            // int dataLength = filesysLength - DATA_START;
 
-            // write only the actual data length
-            filesys.seek(nextFreeOffset);
-            filesys.write(content);
-            filesys.write(new byte[padding]);
+            // write only the actual data length + padding
+            flushDirty(channel, start, ByteBuffer.wrap(content), ByteBuffer.allocate(padding));
 
-            // "truncates" the file to the new size of the filesystem, more passive in our case
-            // only needed if we use other filesystems (smaller than before)
-            filesys.setLength(filesysLength);
+            // "truncates" the file to the new size of the filesystem, only needed if
+            // the file is longer than our data (e.g. leftovers of a crashed write)
+            if (channel.size() > filesysLength) {
+                channel.truncate(filesysLength);
+            }
 
         } catch (IOException exep) {
             System.out.println("Error writing filesystem: " + exep.getMessage());
@@ -478,37 +987,22 @@ public class FileSystem {
             filesys.seek(0);
             filesys.readFully(header.array());
             filesys.readFully(entries.array());
+            table.load(entries, 0);
 
-            // 2) Search for the file in entry table
-            int foundIndex = -1;
-            int base = 0;
-            for (int i = 0; i < maxFiles; i++) {
-                base = i * entrySize;
-                entries.position(base + ENTRY_NAME_OFFSET);
-                byte[] nameBytes = new byte[32];
-                entries.get(nameBytes);
-
-                String cleanName = new String(nameBytes, StandardCharsets.UTF_8)
-                        .split("\0", 2)[0];
-
-                if (cleanName.equals(fileName)) {
-                    foundIndex = i;
-                    break;
-                }
-            }
+            // 2) Search for the active file in entry table
+            int foundIndex = table.find(fileName, true);
 
             if (foundIndex == -1) {
                 return "File " + fileName + " not found in filesystem " + fsName;
             }
             // 3) Read start offset and length
             // because we already read in enteries
-            int start = entries.getInt(base + ENTRY_START_OFFSET);
-            int length = entries.getInt(base + ENTRY_LENGTH_OFFSET);
+            int start = table.start[foundIndex];
+            int length = table.length[foundIndex];
 
             // 4) Read file content from file
             byte[] content = new byte[length];
-            filesys.seek(start);
-            filesys.readFully(content);
+            readExtent(filesys, header.getInt(BACKING_LIMIT_OFFSET), start, content);
 
             // 5) Write file to disk
             try (FileOutputStream file_to_disk = new FileOutputStream(fileName)) {
@@ -535,44 +1029,37 @@ public class FileSystem {
             filesys.seek(0);
             filesys.readFully(header.array());
             filesys.readFully(entries.array());
+            table.load(entries, 0);
 
-            // 2) Search for the file in entry table
-            int foundIndex = -1;
-            for (int i = 0; i < maxFiles; i++) {
-                int base = i * entrySize;
-                entries.position(base + ENTRY_NAME_OFFSET);
-                byte[] nameBytes = new byte[32];
-                entries.get(nameBytes);
-
-                String cleanName = new String(nameBytes, StandardCharsets.UTF_8)
-                        .split("\0", 2)[0];
-
-                if (cleanName.equals(fileName)) {
-                    foundIndex = i;
-                    break;
-                }
-            }
+            // 2) Search for the active file in entry table
+            int foundIndex = table.find(fileName, true);
 
             if (foundIndex == -1) {
                 return "File " + fileName + " not found in filesystem " + fsName;
             }
 
             // 3) Mark the entry as deleted (det flag = 1)
-            int entryPos = foundIndex * entrySize + ENTRY_FLAG_OFFSET;
-            entries.position(entryPos);
-            entries.put((byte) 1);
+            table.flag[foundIndex] = 1;
+            recordChange(foundIndex);
 
             // 4) Update header: file_count-- and deleted_files++
             short fileCount = header.getShort(FILE_COUNT_OFFSET);
             header.putShort(FILE_COUNT_OFFSET, (short) (fileCount - 1));
+            markHeaderDirty(FILE_COUNT_OFFSET, 2);
 
             short deleted = header.getShort(DELETED_FILES_OFFSET);
             header.putShort(DELETED_FILES_OFFSET, (short) (deleted + 1));
+            markHeaderDirty(DELETED_FILES_OFFSET, 2);
 
-            // 5) Write header and entries back to disk (data region stays unchanged)
-            filesys.seek(0);
-            filesys.write(header.array());
-            filesys.write(entries.array());
+            // the extent is dead now (unless a snapshot / clone still uses it)
+            if (table.start[foundIndex] >= frozenLimit()) {
+                addDeadBytes(table.footprint(foundIndex));
+            }
+
+            // 5) Write the changed header fields and entry back to disk (data region
+            // stays unchanged)
+            flushDirty(filesys.getChannel(), 0);
+            autoDefrag(filesys);
 
             output = "File " + fileName + " marked as deleted in filesystem " + fsName;
         }
@@ -585,8 +1072,6 @@ public class FileSystem {
         // Lists all active (aka not flagged) files in the filesystem with size and
         // timestamp.
         layout_assertions();
-        StringBuilder sb = new StringBuilder();
-        boolean any = false;
 
         try (RandomAccessFile filesys = new RandomAccessFile(fsName, "r")) {
             header.clear();
@@ -594,52 +1079,35 @@ public class FileSystem {
             filesys.seek(0);
             filesys.readFully(header.array());
             filesys.readFully(entries.array());
+            table.load(entries, 0);
+        }
 
-            for (int i = 0; i < maxFiles; i++) {
-                int base = i * entrySize;
-
-                // read name
-                entries.position(base + ENTRY_NAME_OFFSET);
-                byte[] nameBytes = new byte[32];
-                entries.get(nameBytes);
-
-                // check if entry is empty
-                boolean isEmpty = true;
-                for (byte b : nameBytes) {
-                    if (b != 0) {
-                        isEmpty = false;
-                        break;
-                    }
-                }
-                if (isEmpty) {
-                    continue;
-                }
-
-                // check flag (if deleted -> skip)
-                byte flag = entries.get(base + ENTRY_FLAG_OFFSET);
-                if (flag == 1) {
-                    continue;
-                }
-
-                int length = entries.getInt(base + ENTRY_LENGTH_OFFSET);
-                long created = entries.getLong(base + ENTRY_CREATED_OFFSET);
+        return listEntries("No active files in filesystem " + fsName);
+    }
 
-                String cleanName = new String(nameBytes, StandardCharsets.UTF_8)
-                        .split("\0", 2)[0];
+    // formats all active entries currently loaded into the entry table
+    private String listEntries(String emptyMessage) {
+        StringBuilder sb = new StringBuilder();
+        boolean any = false;
 
-                any = true;
-                sb.append(cleanName)
-                        .append("  ")
-                        .append(length)
-                        .append(" Bytes  ")
-                        .append("created=")
-                        .append(created)
-                        .append(System.lineSeparator());
+        for (int i = 0; i < maxFiles; i++) {
+            // skip empty and deleted entries
+            if (!table.isActive(i)) {
+                continue;
             }
+
+            any = true;
+            sb.append(table.name(i))
+                    .append("  ")
+                    .append(table.length[i])
+                    .append(" Bytes  ")
+                    .append("created=")
+                    .append(table.created[i])
+                    .append(System.lineSeparator());
         }
 
         if (!any) {
-            return "No active files in filesystem " + fsName;
+            return emptyMessage;
         }
         return sb.toString();
     }
@@ -647,6 +1115,8 @@ public class FileSystem {
     protected String dfrgfs(String fsName) throws IOException {
         // Removes deleted files and compacts entries + data. (we load all used data
         // into memory and rewrite it compactly.)
+        // Data below the frozen limit (snapshot / backing image of a clone) is
+        // never moved, only the data written after it gets compacted.
         layout_assertions();
         String output;
 
@@ -657,128 +1127,123 @@ public class FileSystem {
             filesys.seek(0);
             filesys.readFully(header.array());
             filesys.readFully(entries.array());
+            table.load(entries, 0);
 
             int oldNextFree = header.getInt(NEXT_FREE_OFFSET_OFFSET);
+            int frozen = frozenLimit();
 
-            // size of data currently in use
-            int oldDataSize = Math.max(0, oldNextFree - DATA_START);
+            // size of data currently in use (after the frozen region)
+            int oldDataSize = Math.max(0, oldNextFree - frozen);
 
             // read old data into a buffer
             data = ByteBuffer.allocate(oldDataSize);
             data.order(ByteOrder.LITTLE_ENDIAN);
             if (oldDataSize > 0) {
-                filesys.seek(DATA_START);
+                filesys.seek(frozen);
                 filesys.readFully(data.array(), 0, oldDataSize);
             }
 
-            // 2) Collect active entries + respective data
-            class EntryMeta {
-                byte[] name;
-                int length;
-                long created;
-                byte type;
-                byte[] fileData;
-            }
-
-            java.util.List<EntryMeta> active = new java.util.ArrayList<>();
+            // 2) Collect active entries (in table order), count the deleted ones
+            int[] active = new int[maxFiles];
+            int activeCount = 0;
             int deletedCount = 0;
-
             for (int i = 0; i < maxFiles; i++) {
-                int base = i * entrySize;
-
-                // read name
-                entries.position(base + ENTRY_NAME_OFFSET);
-                byte[] nameBytes = new byte[32];
-                entries.get(nameBytes);
-
-                // empty slot?
-                boolean isEmpty = true;
-                for (byte b : nameBytes) {
-                    if (b != 0) {
-                        isEmpty = false;
-                        break;
-                    }
-                }
-                if (isEmpty) {
-                    continue;
+                if (table.isActive(i)) {
+                    active[activeCount++] = i;
+                } else if (!table.isEmpty(i)) {
+                    deletedCount++; // deleted file -> drop it
                 }
+            }
 
-                byte flag = entries.get(base + ENTRY_FLAG_OFFSET);
-                if (flag == 1) {
-                    // deleted file -> drop it
-                    deletedCount++;
+            // 3) Rebuild data: the data of the active entries (if not pinned below
+            // the frozen limit) is copied from the old data buffer into newData,
+            // 64-byte aligned, in table order. The files of a packed segment are
+            // copied together when the first of them comes up, one after another
+            // (in the order they had in the segment, without the deleted ones).
+            ByteBuffer newData = ByteBuffer.allocate(oldDataSize);
+            int writeRelOffset = 0; // relative to the frozen limit
+            int newNextFree = frozen;
+            int[] newStart = table.start.clone();
+            int[] newSegment = table.segment.clone();
+            boolean[] placed = new boolean[maxFiles];
+
+            for (int i = 0; i < activeCount; i++) {
+                int slot = active[i];
+                if (placed[slot] || table.start[slot] < frozen) {
                     continue;
                 }
 
-                int start = entries.getInt(base + ENTRY_START_OFFSET);
-                int length = entries.getInt(base + ENTRY_LENGTH_OFFSET);
-                long created = entries.getLong(base + ENTRY_CREATED_OFFSET);
-                byte type = entries.get(base + ENTRY_TYPE_OFFSET);
-
-                // read data from old data buffer (relative to DATA_START)
-                int relOffset = start - DATA_START;
-                byte[] fileData = new byte[length];
-                if (relOffset >= 0 && relOffset + length <= oldDataSize) {
-                    System.arraycopy(data.array(), relOffset, fileData, 0, length);
+                // the file itself, or all active files of its segment sorted by position
+                int[] members = { slot };
+                if (table.isPacked(slot)) {
+                    members = new int[activeCount];
+                    int count = 0;
+                    for (int j = i; j < activeCount; j++) {
+                        int other = active[j];
+                        if (table.isPacked(other) && table.segment[other] == table.segment[slot]) {
+                            int k = count++;
+                            while (k > 0 && table.segmentPos[members[k - 1]] > table.segmentPos[other]) {
+                                members[k] = members[k - 1];
+                                k--;
+                            }
+                            members[k] = other;
+                        }
+                    }
+                    members = Arrays.copyOf(members, count);
                 }
 
-                EntryMeta em = new EntryMeta();
-                em.name = nameBytes;
-                em.length = length;
-                em.created = created;
-                em.type = type;
-                em.fileData = fileData;
-                active.add(em);
-            }
-
-            // 3) Clear entries buffer)
-            Arrays.fill(entries.array(), (byte) 0);
-
-            // 4) Rebuild data & entries
-            ByteBuffer newData = ByteBuffer.allocate(oldDataSize);
-            int writeRelOffset = 0; // relative to DATA_START
-            int newNextFree = DATA_START;
-
-            for (int i = 0; i < active.size(); i++) {
-                EntryMeta em = active.get(i);
-
-                // align to 64 bytes relative to DATA_START
                 int alignedRel = ((writeRelOffset + ALIGNMENT - 1) / ALIGNMENT) * ALIGNMENT;
-                int start = DATA_START + alignedRel;
-
-                // write data into newData
-                newData.position(alignedRel);
-                newData.put(em.fileData);
-                int padding = (ALIGNMENT - (em.length % ALIGNMENT)) % ALIGNMENT;
-                if (padding > 0) {
-                    newData.put(new byte[padding]);
+                int cursor = alignedRel;
+                for (int member : members) {
+                    int relOffset = table.start[member] - frozen;
+                    int length = table.length[member];
+                    if (relOffset + length <= oldDataSize) {
+                        System.arraycopy(data.array(), relOffset, newData.array(), cursor, length);
+                    }
+                    newStart[member] = frozen + cursor;
+                    if (table.isPacked(member)) {
+                        newSegment[member] = frozen + alignedRel;
+                    }
+                    placed[member] = true;
+                    cursor += length;
                 }
 
-                writeRelOffset = alignedRel + em.length + padding;
-                newNextFree = DATA_START + writeRelOffset;
-
-                // write entry at index "i"
-                int base = i * entrySize;
-                entries.position(base + ENTRY_NAME_OFFSET);
-                entries.put(em.name);
-                entries.position(base + ENTRY_START_OFFSET);
-                entries.putInt(start);
-                entries.position(base + ENTRY_LENGTH_OFFSET);
-                entries.putInt(em.length);
-                entries.position(base + ENTRY_TYPE_OFFSET);
-                entries.put(em.type);
-                entries.position(base + ENTRY_FLAG_OFFSET);
-                entries.put((byte) 0); // active
-                entries.position(base + ENTRY_CREATED_OFFSET);
-                entries.putLong(em.created);
+                writeRelOffset = cursor + (ALIGNMENT - (cursor % ALIGNMENT)) % ALIGNMENT;
+                newNextFree = frozen + writeRelOffset;
+            }
+
+            // entry at index "i", same name / length / type / created / sequence
+            EntryTable rebuilt = new EntryTable();
+            for (int i = 0; i < activeCount; i++) {
+                int slot = active[i];
+                System.arraycopy(table.names, slot * 32, rebuilt.names, i * 32, 32);
+                rebuilt.nameLength[i] = table.nameLength[slot];
+                rebuilt.start[i] = newStart[slot];
+                rebuilt.length[i] = table.length[slot];
+                rebuilt.type[i] = table.type[slot];
+                rebuilt.flag[i] = 0; // active
+                rebuilt.created[i] = table.created[slot];
+                rebuilt.sequence[i] = table.sequence[slot];
+                rebuilt.segment[i] = newSegment[slot];
+                rebuilt.segmentPos[i] = table.isPacked(slot) ? newStart[slot] - newSegment[slot] : 0;
             }
 
+            // 4) The rebuilt table replaces the old one (the rest of it is empty)
+            rebuilt.store(entries);
+            table.load(entries, 0);
+
             // 5) Update header
-            int newFileCount = active.size();
+            int newFileCount = activeCount;
             int freedBytes = Math.max(0, oldNextFree - newNextFree);
 
             header.putShort(FILE_COUNT_OFFSET, (short) newFileCount);
             header.putShort(DELETED_FILES_OFFSET, (short) 0);
+            if (deletedCount > 0) {
+                // the deletions are gone, change positions from before are useless now
+                header.putShort(COMPACTION_EPOCH_OFFSET, (short) (header.getShort(COMPACTION_EPOCH_OFFSET) + 1));
+            }
+            header.putInt(DEAD_BYTES_OFFSET, 0);
+            header.putShort(FRAGMENTATION_OFFSET, (short) 0);
             header.putInt(NEXT_FREE_OFFSET_OFFSET, newNextFree);
 
             if (newFileCount < maxFiles) {
@@ -796,7 +1261,7 @@ public class FileSystem {
             filesys.write(entries.array());
 
             if (writeRelOffset > 0) {
-                filesys.seek(DATA_START);
+                filesys.seek(frozen);
                 filesys.write(newData.array(), 0, writeRelOffset);
             }
 
@@ -821,42 +1286,22 @@ public class FileSystem {
             filesys.seek(0);
             filesys.readFully(header.array());
             filesys.readFully(entries.array());
+            table.load(entries, 0);
 
-            // 1) Find the file entry
-            int foundIndex = -1;
-            for (int i = 0; i < maxFiles; i++) {
-                int base = i * entrySize;
-                entries.position(base + ENTRY_NAME_OFFSET);
-                byte[] nameBytes = new byte[32];
-                entries.get(nameBytes); // reads 32 bytes for the name
-
-                String cleanName = new String(nameBytes, StandardCharsets.UTF_8)
-                        .split("\0", 2)[0];
-
-                byte flag = entries.get(base + ENTRY_FLAG_OFFSET);
-                if (flag == 1) {
-                    continue; // deleted, skip
-                }
-
-                if (cleanName.equals(fileName)) {
-                    foundIndex = i;
-                    break;
-                }
-            }
+            // 1) Find the file entry (deleted ones are skipped)
+            int foundIndex = table.find(fileName, true);
 
             if (foundIndex == -1) {
                 throw new IOException("File " + fileName + " not found in filesystem " + fsName);
             }
 
             // 2) Read start offset and length
-            int base = foundIndex * entrySize;
-            int start = entries.getInt(base + ENTRY_START_OFFSET);
-            int length = entries.getInt(base + ENTRY_LENGTH_OFFSET);
+            int start = table.start[foundIndex];
+            int length = table.length[foundIndex];
 
             // 3) Read file content from data region
             content = new byte[length];
-            filesys.seek(start);
-            filesys.readFully(content);
+            readExtent(filesys, header.getInt(BACKING_LIMIT_OFFSET), start, content);
         }
 
         // can we assume UTF-8 content? - we did in python version...
@@ -868,4 +1313,674 @@ public class FileSystem {
         output = new String(content, StandardCharsets.UTF_8);
         return output;
     }
+
+    protected String snapshotfs(String fsName) throws IOException {
+        // Freezes the current entry table as a read-only snapshot. The table is
+        // copied to the end of the data region (append-only, like addfs) and
+        // everything before it is never overwritten or moved afterwards.
+        return freeze(fsName, false);
+    }
+
+    // snapshotfs, but with keepSnapshot an existing snapshot stays the one that
+    // lssnapfs shows: its table is copied to the end instead of the current one
+    // (clonefs only needs everything up to next_free_offset to be frozen)
+    private String freeze(String fsName, boolean keepSnapshot) throws IOException {
+        layout_assertions();
+
+        try (RandomAccessFile filesys = new RandomAccessFile(fsName, "rw")) {
+            // 1) Read header + entries
+            header.clear();
+            entries.clear();
+            filesys.seek(0);
+            filesys.readFully(header.array());
+            filesys.readFully(entries.array());
+            table.load(entries, 0);
+
+            int nextFreeOffset = header.getInt(NEXT_FREE_OFFSET_OFFSET);
+            int tableSize = entrySize * maxFiles; // 2048, already 64-byte aligned
+
+            if ((long) nextFreeOffset + tableSize > MAX_FS_SIZE) {
+                return "Cannot take a snapshot of filesystem " + fsName
+                        + " as it would exceed the maximal capacity of 4GB of the filesystem";
+            }
+
+            // 2) Copy the entry table (or the one of the kept snapshot) into the data
+            // region
+            byte[] frozenTable = entries.array();
+            int snapshotOffset = header.getInt(SNAPSHOT_OFFSET);
+            if (keepSnapshot && snapshotOffset != 0) {
+                frozenTable = new byte[tableSize];
+                filesys.seek(snapshotOffset);
+                filesys.readFully(frozenTable);
+            }
+            filesys.seek(nextFreeOffset);
+            filesys.write(frozenTable, 0, tableSize);
+
+            // 3) Update header (an older snapshot table simply stays below the new one)
+            header.put(VERSION_OFFSET, (byte) VERSION_FROZEN);
+            header.putInt(SNAPSHOT_OFFSET, nextFreeOffset);
+            header.putInt(NEXT_FREE_OFFSET_OFFSET, nextFreeOffset + tableSize);
+
+            // everything is frozen now, nothing left that dfrgfs could give back
+            header.putInt(DEAD_BYTES_OFFSET, 0);
+            header.putShort(FRAGMENTATION_OFFSET, (short) 0);
+
+            filesys.seek(0);
+            filesys.write(header.array(), 0, headerSize);
+        }
+
+        return "Created snapshot of filesystem " + fsName;
+    }
+
+    protected String lssnapfs(String fsName) throws IOException {
+        // Lists the active files as they were when the last snapshot was taken.
+        layout_assertions();
+
+        try (RandomAccessFile filesys = new RandomAccessFile(fsName, "r")) {
+            header.clear();
+            entries.clear();
+            filesys.seek(0);
+            filesys.readFully(header.array());
+
+            int snapshotOffset = header.getInt(SNAPSHOT_OFFSET);
+            if (snapshotOffset == 0) {
+                return "No snapshot in filesystem " + fsName;
+            }
+
+            filesys.seek(snapshotOffset);
+            filesys.readFully(entries.array());
+            table.load(entries, 0);
+        }
+
+        return listEntries("No active files in snapshot of filesystem " + fsName);
+    }
+
+    protected String clonefs(String fsName, String cloneName) throws IOException {
+        // Creates a new image that only contains the header + entry table of fsName.
+        // The file data is shared: everything below "backing_limit" is read from
+        // fsName, new data of the clone is appended after it. fsName gets a snapshot
+        // first, so that its dfrgfs never moves the data the clone refers to (if
+        // fsName has a snapshot already, that one is kept).
+        layout_assertions();
+
+        if (new File(cloneName).exists()) {
+            return "Cannot create clone " + cloneName + " as the file already exists";
+        }
+
+        // stored as an absolute path, so the clone finds its base image from any
+        // working directory
+        byte[] backingName = new File(fsName).getAbsolutePath().getBytes(StandardCharsets.UTF_8);
+        if (backingName.length >= entrySize * maxFiles) {
+            return "Name of filesystem " + fsName + " is too long to be used for a clone";
+        }
+
+        // 1) Freeze the base image, this also reads in its header + entries (a
+        // snapshot the user took stays the one lssnapfs shows)
+        String snapshot = freeze(fsName, true);
+        if (header.getInt(SNAPSHOT_OFFSET) == 0) {
+            return snapshot;
+        }
+
+        int backingLimit = header.getInt(NEXT_FREE_OFFSET_OFFSET);
+
+        // 2) Header of the clone: same counters, no own snapshot, backed by fsName
+        ByteBuffer cloneHeader = ByteBuffer.allocate(headerSize);
+        cloneHeader.order(ByteOrder.LITTLE_ENDIAN);
+        cloneHeader.put(header.array(), 0, headerSize);
+        cloneHeader.put(VERSION_OFFSET, (byte) VERSION_FROZEN);
+        cloneHeader.putInt(SNAPSHOT_OFFSET, 0);
+        cloneHeader.putInt(BACKING_LIMIT_OFFSET, backingLimit);
+
+        // 3) Write header, entries and the backing name, the shared data region
+        // stays a hole in the clone (sparse file)
+        try (RandomAccessFile clone = new RandomAccessFile(cloneName, "rw")) {
+            clone.seek(0);
+            clone.write(cloneHeader.array(), 0, headerSize);
+            clone.write(entries.array(), 0, entrySize * maxFiles);
+            clone.seek(DATA_START);
+            clone.write(backingName);
+            clone.write(0);
+            clone.setLength(backingLimit);
+        }
+
+        return "Created clone " + cloneName + " of filesystem " + fsName;
+    }
+
+    protected String writefs(String fsName, String fileName) throws IOException {
+        // replaces the content of a stored file with the file of the same name on disk
+        byte[] content = Files.readAllBytes(Paths.get(fileName));
+        return writefs(fsName, fileName, content, false);
+    }
+
+    protected String appendfs(String fsName, String fileName) throws IOException {
+        // appends the content of the file on disk to the stored file of the same name
+        byte[] content = Files.readAllBytes(Paths.get(fileName));
+        return writefs(fsName, fileName, content, true);
+    }
+
+    // Overwrites (or appends to) an existing file. The old extent is reused if the
+    // new content fits into its 64-byte padding, into the dead space directly
+    // after it, or if it is the last extent (then next_free_offset just moves).
+    // Otherwise the file is written to a new extent at the end and the old one
+    // becomes dead data. Frozen extents (snapshot / clone) are never overwritten,
+    // packed files are always moved (packed again if they are still small).
+    protected String writefs(String fsName, String fileName, byte[] content, boolean append)
+            throws IOException {
+        layout_assertions();
+
+        try (RandomAccessFile filesys = new RandomAccessFile(fsName, "rw")) {
+            // 1) Read header + entries
+            header.clear();
+            entries.clear();
+            filesys.seek(0);
+            filesys.readFully(header.array());
+            filesys.readFully(entries.array());
+            table.load(entries, 0);
+
+            // 2) Find the active entry
+            int foundIndex = table.find(fileName, true);
+
+            if (foundIndex == -1) {
+                return "File " + fileName + " not found in filesystem " + fsName;
+            }
+
+            int start = table.start[foundIndex];
+            int length = table.length[foundIndex];
+            int nextFreeOffset = header.getInt(NEXT_FREE_OFFSET_OFFSET);
+
+            long newLength = append ? (long) length + content.length : content.length;
+            int newPadding = (int) ((ALIGNMENT - (newLength % ALIGNMENT)) % ALIGNMENT);
+            int oldEnd = start + table.alignedLength(foundIndex);
+
+            // 3) How much space can the extent use without moving? Up to the data of
+            // the next active file (dead extents after it can be reused). Every
+            // file counts with its own bytes: a packed file can lie in a segment
+            // that starts before this file, and an empty file can have a start
+            // inside the data of another one, then there is no space at all.
+            int holeEnd = nextFreeOffset;
+            for (int i = 0; i < maxFiles; i++) {
+                if (i == foundIndex || !table.isActive(i) || table.length[i] == 0) {
+                    continue;
+                }
+                if (table.start[i] + table.length[i] > start) {
+                    holeEnd = Math.min(holeEnd, Math.max(start, table.start[i]));
+                }
+            }
+
+            // a packed file shares its 64-byte blocks with others, it always moves;
+            // an empty file has no extent of its own (its start can lie in the gap
+            // a deleted file left in a segment), it is placed like a new file
+            boolean lastExtent = holeEnd == nextFreeOffset;
+            boolean inPlace = !table.isPacked(foundIndex) && length > 0 && start >= frozenLimit()
+                    && (newLength + newPadding <= holeEnd - start || lastExtent);
+
+            // a moved file is packed again if it is small enough
+            int[] place = inPlace ? null : packPlace(newLength);
+            int newStart = place == null ? nextFreeOffset : place[1];
+            if (!inPlace) {
+                newPadding = (int) ((ALIGNMENT - ((newStart + newLength) % ALIGNMENT)) % ALIGNMENT);
+            }
+            long newEnd = (inPlace ? start : newStart) + newLength + newPadding;
+
+            if (newEnd > MAX_FS_SIZE) {
+                return "Cannot write the file: " + fileName + " into filesystem: " + fsName
+                        + " as it would exceed the maximal capacity of 4GB of the filesystem";
+            }
+
+            // 4) Write the data, either into the old extent or into a new one
+            long dataOffset;
+            ByteBuffer[] data;
+            if (inPlace) {
+                // appending only writes the new bytes after the old content
+                dataOffset = append ? start + length : start;
+                data = new ByteBuffer[] { ByteBuffer.wrap(content), ByteBuffer.allocate(newPadding) };
+                if (lastExtent) {
+                    // the dead extents between the old end and next_free_offset are
+                    // overwritten or lie past the new next_free_offset, both are gone
+                    if (newEnd != nextFreeOffset) {
+                        header.putInt(NEXT_FREE_OFFSET_OFFSET, (int) newEnd);
+                        markHeaderDirty(NEXT_FREE_OFFSET_OFFSET, 4);
+                    }
+                    addDeadBytes(-Math.max(0, nextFreeOffset - oldEnd));
+                } else {
+                    // growing uses up dead space after the extent, shrinking leaves some
+                    addDeadBytes((int) (oldEnd - newEnd));
+                }
+            } else {
+                byte[] old = new byte[append ? length : 0];
+                if (append) {
+                    readExtent(filesys, header.getInt(BACKING_LIMIT_OFFSET), start, old);
+                }
+                dataOffset = newStart;
+                data = new ByteBuffer[] { ByteBuffer.wrap(old), ByteBuffer.wrap(content),
+                        ByteBuffer.allocate(newPadding) };
+                if (start >= frozenLimit()) {
+                    addDeadBytes(table.footprint(foundIndex));
+                }
+                table.start[foundIndex] = newStart;
+                table.segment[foundIndex] = place == null ? 0 : place[0];
+                table.segmentPos[foundIndex] = place == null ? 0 : newStart - place[0];
+                header.putInt(NEXT_FREE_OFFSET_OFFSET, (int) newEnd);
+                markHeaderDirty(NEXT_FREE_OFFSET_OFFSET, 4);
+            }
+            addDeadBytes(0);
+
+            table.length[foundIndex] = (int) newLength;
+            recordChange(foundIndex);
+
+            FileChannel channel = filesys.getChannel();
+            flushDirty(channel, dataOffset, data);
+            autoDefrag(filesys);
+
+            // the file got shorter at the end of the data region
+            int newNextFree = header.getInt(NEXT_FREE_OFFSET_OFFSET);
+            if (channel.size() > newNextFree) {
+                channel.truncate(newNextFree);
+            }
+
+            return (append ? "Appended to file " : "Wrote file ") + fileName + " in filesystem " + fsName
+                    + (inPlace ? " (in place)" : " (relocated)");
+        }
+    }
+
+    protected String autodfrgfs(String fsName, String setting) throws IOException {
+        // Turns the automatic incremental defragmentation on or off. setting is
+        // "<percent>:<bytes>" (e.g. "20:65536": once 20 % of the data is dead, every
+        // rmfs / writefs / appendfs moves up to 64 KiB of data) or "off".
+        layout_assertions();
+
+        String usage = "Setting must look like <percent>:<bytes> (e.g. 20:65536) or off";
+        int threshold = 0;
+        int budget = 0;
+        if (setting == null) {
+            return usage;
+        }
+        if (!setting.equals("off")) {
+            String[] parts = setting.split(":");
+            if (parts.length != 2) {
+                return usage;
+            }
+            try {
+                threshold = (int) Math.round(Double.parseDouble(parts[0]) * 10);
+                budget = Integer.parseInt(parts[1]);
+            } catch (NumberFormatException e) {
+                return usage;
+            }
+            if (threshold < 1 || threshold > 1000 || budget < 1) {
+                return "Percent must be between 0.1 and 100 and bytes must be positive";
+            }
+        }
+
+        try (RandomAccessFile filesys = new RandomAccessFile(fsName, "rw")) {
+            header.clear();
+            entries.clear();
+            filesys.seek(0);
+            filesys.readFully(header.array());
+            filesys.readFully(entries.array());
+            table.load(entries, 0);
+
+            header.putShort(AUTO_DEFRAG_THRESHOLD_OFFSET, (short) threshold);
+            header.putInt(AUTO_DEFRAG_BUDGET_OFFSET, budget);
+            markHeaderDirty(AUTO_DEFRAG_THRESHOLD_OFFSET, 6);
+            flushDirty(filesys.getChannel(), 0);
+
+            // maybe the image is already above the threshold
+            autoDefrag(filesys);
+        }
+
+        if (threshold == 0) {
+            return "Turned off automatic defragmentation for filesystem " + fsName;
+        }
+        return "Turned on automatic defragmentation for filesystem " + fsName;
+    }
+
+    protected String packfs(String fsName, String setting) throws IOException {
+        // Turns packing of small files on or off. setting is "<bytes>" (e.g. "512":
+        // every file of at most 512 bytes added from now on goes into a shared
+        // segment directly after the previous small file, instead of getting its
+        // own 64-byte aligned extent) or "off". Files already in the image stay
+        // where they are.
+        layout_assertions();
+
+        String usage = "Bytes must be between 1 and " + (SEGMENT_SIZE / 2) + " (or off)";
+        int packLimit = 0;
+        if (setting == null) {
+            return usage;
+        }
+        if (!setting.equals("off")) {
+            try {
+                packLimit = Integer.parseInt(setting);
+            } catch (NumberFormatException e) {
+                return usage;
+            }
+            if (packLimit < 1 || packLimit > SEGMENT_SIZE / 2) {
+                return usage;
+            }
+        }
+
+        try (RandomAccessFile filesys = new RandomAccessFile(fsName, "rw")) {
+            header.clear();
+            filesys.seek(0);
+            filesys.readFully(header.array());
+
+            header.putShort(PACK_LIMIT_OFFSET, (short) packLimit);
+            markHeaderDirty(PACK_LIMIT_OFFSET, 2);
+            flushDirty(filesys.getChannel(), 0);
+        }
+
+        if (packLimit == 0) {
+            return "Turned off packing of small files for filesystem " + fsName;
+        }
+        return "Turned on packing of files up to " + packLimit + " bytes for filesystem " + fsName;
+    }
+
+    // Incremental defragmentation, runs after an operation if it is turned on and
+    // the fragmentation is above the threshold. Instead of rewriting everything
+    // like dfrgfs, it moves single extents (a packed segment counts as one) into
+    // the holes (worst ones first) and cuts off the end of the file, until the
+    // budget of moved bytes is used up.
+    // Frozen extents and the entry table order stay untouched.
+    // (header + entries have to be read in and written back already)
+    private void autoDefrag(RandomAccessFile filesys) throws IOException {
+        int threshold = header.getShort(AUTO_DEFRAG_THRESHOLD_OFFSET) & 0xFFFF;
+        if (threshold == 0 || (header.getShort(FRAGMENTATION_OFFSET) & 0xFFFF) < threshold) {
+            return;
+        }
+
+        int budget = header.getInt(AUTO_DEFRAG_BUDGET_OFFSET);
+        int frozen = frozenLimit();
+        int moved = 0;
+
+        while (true) {
+            // 1) Active extents after the frozen limit, sorted by start offset
+            // (a packed segment is one extent)
+            java.util.List<Extent> live = table.extentsByStart(frozen);
+
+            // 2) Cut off dead data at the end
+            int end = frozen;
+            for (Extent extent : live) {
+                end = Math.max(end, extent.end);
+            }
+            int nextFree = header.getInt(NEXT_FREE_OFFSET_OFFSET);
+            if (end < nextFree) {
+                header.putInt(NEXT_FREE_OFFSET_OFFSET, end);
+                markHeaderDirty(NEXT_FREE_OFFSET_OFFSET, 4);
+                addDeadBytes(end - nextFree);
+            }
+
+            if (live.isEmpty()) {
+                break;
+            }
+
+            // 3) Move the last extent into the biggest hole before it that fits.
+            // If there is none, slide the extent with the most dead space in front
+            // of it (compared to its own size) down, so the holes grow together
+            // and finally reach the end of the file.
+            Extent last = live.get(live.size() - 1);
+            int lastSize = last.end - last.start;
+
+            Extent move = null;
+            int holeStart = -1;
+            int holeSize = 0;
+            Extent slide = null;
+            int slideStart = -1;
+            double slideRatio = 0;
+
+            int previousEnd = frozen;
+            for (Extent extent : live) {
+                int gap = extent.start - previousEnd;
+                if (gap > 0 && gap >= lastSize && gap > holeSize) {
+                    move = last;
+                    holeStart = previousEnd;
+                    holeSize = gap;
+                }
+                double ratio = gap / (double) (extent.end - extent.start + 1);
+                if (gap > 0 && ratio > slideRatio) {
+                    slide = extent;
+                    slideStart = previousEnd;
+                    slideRatio = ratio;
+                }
+                previousEnd = Math.max(previousEnd, extent.end);
+            }
+
+            if (move == null) {
+                move = slide;
+                holeStart = slideStart;
+            }
+            if (move == null || moved + (move.end - move.start) > budget) {
+                break;
+            }
+
+            int size = move.end - move.start;
+
+            // read it completely first, the hole may overlap the old place
+            byte[] content = new byte[size];
+            filesys.seek(move.start);
+            filesys.readFully(content, 0, move.used - move.start);
+            filesys.seek(holeStart);
+            filesys.write(content);
+
+            // all files of the extent move by the same distance
+            int distance = holeStart - move.start;
+            for (int slot : move.slots) {
+                table.start[slot] += distance;
+                if (table.isPacked(slot)) {
+                    table.segment[slot] += distance;
+                }
+                markSlotDirty(slot);
+            }
+            moved += size;
+        }
+
+        flushDirty(filesys.getChannel(), 0);
+
+        int nextFree = header.getInt(NEXT_FREE_OFFSET_OFFSET);
+        if (filesys.length() > nextFree) {
+            filesys.setLength(nextFree);
+        }
+    }
+
+    protected String changesfs(String fsName, String since) throws IOException {
+        // Lists every entry that was added, written or deleted after the given
+        // change position, or created at / after a UNIX timestamp ("@<time>",
+        // this only lists new files: entries do not store when they were written
+        // or deleted).
+        // A position is "<compaction epoch>:<change counter>" ("12" is "0:12").
+        // The output starts with the current position, which is the value to ask
+        // for next time. dfrgfs removes deleted entries and starts a new epoch, a
+        // position of an older epoch is refused: the reader has to start from 0.
+        layout_assertions();
+
+        try (RandomAccessFile filesys = new RandomAccessFile(fsName, "r")) {
+            header.clear();
+            entries.clear();
+            filesys.seek(0);
+            filesys.readFully(header.array());
+            filesys.readFully(entries.array());
+            table.load(entries, 0);
+        }
+
+        java.util.List<Integer> changed;
+        try {
+            if (isCompactedSince(since)) {
+                return "Filesystem " + fsName + " was compacted after " + since
+                        + ", deleted files are missing from there on. Start again from 0 (current position "
+                        + changePosition() + ")";
+            }
+            changed = changedSlots(since);
+        } catch (NumberFormatException e) {
+            return "Give a change position (e.g. 12 or 3:12) or a UNIX timestamp (e.g. @1765212344)";
+        }
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("Changes in filesystem ").append(fsName).append(" since ").append(since)
+                .append(" (current position ").append(changePosition()).append(")")
+                .append(System.lineSeparator());
+
+        for (int slot : changed) {
+            sb.append(table.sequence[slot])
+                    .append(table.flag[slot] == 1 ? "  deleted  " : "  added  ")
+                    .append(table.name(slot))
+                    .append("  ")
+                    .append(table.length[slot])
+                    .append(" Bytes  created=")
+                    .append(table.created[slot])
+                    .append(System.lineSeparator());
+        }
+
+        return sb.toString();
+    }
+
+    // Writes all changes after "since" (same format as changesfs) as a stream that
+    // applyChanges can replay on another image: "ZVFSCHG1", the change counter,
+    // the compaction epoch, then per change 1 = added (name, length, data) or
+    // 2 = deleted (name), 0 = end.
+    // Only a change position works here: an entry stores when it was created, not
+    // when it was written or deleted, so "@<time>" would miss changes. A position
+    // from before the last compaction is refused as well, the deletions up to
+    // then are gone; the reader has to copy everything again, starting from 0.
+    protected int exportChanges(String fsName, String since, java.io.OutputStream out) throws IOException {
+        layout_assertions();
+        if (since.startsWith("@")) {
+            throw new IllegalArgumentException("Changes can only be exported since a change position, got: "
+                    + since);
+        }
+        java.io.DataOutputStream stream = new java.io.DataOutputStream(out);
+        int count = 0;
+
+        try (RandomAccessFile filesys = new RandomAccessFile(fsName, "r")) {
+            header.clear();
+            entries.clear();
+            filesys.seek(0);
+            filesys.readFully(header.array());
+            filesys.readFully(entries.array());
+            table.load(entries, 0);
+
+            if (isCompactedSince(since)) {
+                throw new IllegalArgumentException("Filesystem " + fsName + " was compacted after " + since
+                        + ", export the changes since 0 into an empty image instead");
+            }
+
+            stream.write("ZVFSCHG1".getBytes(StandardCharsets.UTF_8));
+            stream.writeInt(header.getInt(CHANGE_COUNTER_OFFSET));
+            stream.writeShort(header.getShort(COMPACTION_EPOCH_OFFSET));
+
+            for (int slot : changedSlots(since)) {
+                String cleanName = table.name(slot);
+
+                if (table.flag[slot] == 1) {
+                    stream.writeByte(2);
+                    stream.writeUTF(cleanName);
+                } else {
+                    byte[] content = new byte[table.length[slot]];
+                    readExtent(filesys, header.getInt(BACKING_LIMIT_OFFSET), table.start[slot], content);
+                    stream.writeByte(1);
+                    stream.writeUTF(cleanName);
+                    stream.writeInt(content.length);
+                    stream.write(content);
+                }
+                count++;
+            }
+            stream.writeByte(0);
+            stream.flush();
+        }
+        return count;
+    }
+
+    // Replays a stream of exportChanges on fsName (e.g. a backup image): added
+    // files are written (or added if they are new or deleted there), deleted files
+    // are removed. Replaying the same stream again gives the same image contents.
+    protected String applyChanges(String fsName, java.io.InputStream in) throws IOException {
+        java.io.DataInputStream stream = new java.io.DataInputStream(in);
+
+        byte[] magic = new byte[8];
+        stream.readFully(magic);
+        if (!new String(magic, StandardCharsets.UTF_8).equals("ZVFSCHG1")) {
+            return "Not a change stream of a filesystem";
+        }
+        int sourceCounter = stream.readInt();
+        int sourceEpoch = stream.readShort() & 0xFFFF;
+
+        int applied = 0;
+        int op;
+        while ((op = stream.readByte()) != 0) {
+            String name = stream.readUTF();
+            if (op == 1) {
+                byte[] content = new byte[stream.readInt()];
+                stream.readFully(content);
+                String result = new FileSystem().writefs(fsName, name, content, false);
+                if (result.startsWith("File " + name + " not found")) {
+                    result = new FileSystem().addfs(fsName, name, content);
+                }
+                if (!result.startsWith("Wrote file") && !result.startsWith("Added file")) {
+                    return "Stopped after " + applied + " changes: " + result;
+                }
+            } else {
+                // a file that is not there (anymore) is fine as well, rmfs only
+                // finds active files, so replaying a deletion twice does nothing
+                new FileSystem().rmfs(fsName, name);
+            }
+            applied++;
+        }
+
+        return "Applied " + applied + " changes to filesystem " + fsName
+                + " (source position " + (sourceEpoch == 0 ? "" : sourceEpoch + ":") + sourceCounter + ")";
+    }
+
+    // "<epoch>:<counter>", or only the counter while no dfrgfs dropped deleted
+    // entries yet (header has to be read in already)
+    private String changePosition() {
+        int epoch = header.getShort(COMPACTION_EPOCH_OFFSET) & 0xFFFF;
+        int counter = header.getInt(CHANGE_COUNTER_OFFSET);
+        return epoch == 0 ? "" + counter : epoch + ":" + counter;
+    }
+
+    // true if a dfrgfs dropped deleted entries after the position "since" (its
+    // epoch, 0 if none is given, is not the current one); "0" and timestamps are
+    // never compacted (header has to be read in already)
+    private boolean isCompactedSince(String since) {
+        if (since.startsWith("@")) {
+            return false;
+        }
+        int split = since.indexOf(':');
+        long counter = Long.parseLong(since.substring(split + 1));
+        int epoch = split < 0 ? 0 : Integer.parseInt(since.substring(0, split));
+        return counter != 0 && epoch != (header.getShort(COMPACTION_EPOCH_OFFSET) & 0xFFFF);
+    }
+
+    // Secondary index over the entry table: the used slots sorted by change
+    // sequence (or by creation time for "@<time>", which only finds files created
+    // since then), then everything after "since"
+    // is found by binary search. (entry table has to be read in already)
+    private java.util.List<Integer> changedSlots(String since) {
+        boolean byTime = since.startsWith("@");
+        long from = Long.parseLong(byTime ? since.substring(1) : since.substring(since.indexOf(':') + 1));
+
+        java.util.List<Integer> index = new java.util.ArrayList<>();
+        for (int i = 0; i < maxFiles; i++) {
+            if (!table.isEmpty(i)) {
+                index.add(i);
+            }
+        }
+        java.util.function.IntToLongFunction key = slot -> byTime
+                ? table.created[slot]
+                : table.sequence[slot] & 0xFFFFFFFFL;
+        index.sort((a, b) -> Long.compare(key.applyAsLong(a), key.applyAsLong(b)));
+
+        // sequence numbers: strictly after "since", timestamps: at or after it;
+        // "0" means everything, also entries without a sequence number (added
+        // before change tracking, or compacted by the python dfrgfs)
+        long bound = byTime || from == 0 ? from : from + 1;
+        int low = 0;
+        int high = index.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (key.applyAsLong(index.get(middle)) < bound) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return index.subList(low, index.size());
+    }
 }
\ No newline at end of file
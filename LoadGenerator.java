@@ -0,0 +1,357 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Soak test for real images: many threads run a configurable mix of addfs, rmfs,
+// catfs, getfs and dfrgfs against a volume (shards=1 is a single image) and we
+// report throughput, p50/p99/p999 latency and the size of the images over time.
+// This shows how the dead data of rmfs piles up until dfrgfs runs.
+//
+// java LoadGenerator image=soak shards=1 threads=8 seconds=60 report=5
+//      sizes=uniform:16:8192 reads=0.5 deletes=0.3 gets=0.1 defrag=0.001
+//
+// sizes:   fixed:<n> | uniform:<min>:<max> | exp:<mean>  (file size in bytes)
+// reads:   share of operations that read (catfs / getfs), the rest writes
+// deletes: share of the writes that are rmfs, the rest addfs
+// gets:    share of the reads that are getfs (writes the file to disk and
+//          removes it again), the rest catfs
+// defrag:  share of all operations that are dfrgfs on the whole volume
+//
+// The volume is created by the run, so its shards must not exist yet.
+public class LoadGenerator {
+
+    private static final String[] OPERATIONS = { "addfs", "rmfs", "catfs", "getfs", "dfrgfs" };
+    private static final int ADD = 0;
+    private static final int RM = 1;
+    private static final int CAT = 2;
+    private static final int GET = 3;
+    private static final int DFRG = 4;
+
+    // ----- parameters -----
+
+    private String image = "soak";
+    private int shards = 1;
+    private int threads = 8;
+    private int seconds = 60;
+    private int report = 5;
+    private String sizes = "uniform:16:8192";
+    private double reads = 0.5;
+    private double deletes = 0.3;
+    private double gets = 0.1;
+    private double defrag = 0.001;
+
+    // ----- state while running -----
+
+    private Volume volume;
+    private final List<String> live = new ArrayList<>();
+    private final AtomicBoolean running = new AtomicBoolean(true);
+
+    // per operation: latencies of the current report interval and of the whole run
+    private final LatencyHistogram[] interval = new LatencyHistogram[OPERATIONS.length];
+    private final LatencyHistogram[] total = new LatencyHistogram[OPERATIONS.length];
+
+    // operations that were refused (image full, file just removed by another thread)
+    private final AtomicLongArray refused = new AtomicLongArray(OPERATIONS.length);
+
+    // rmfs, catfs and getfs that did not run because there was no live file yet
+    private final AtomicLongArray idle = new AtomicLongArray(OPERATIONS.length);
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator generator = new LoadGenerator();
+        generator.parse(args);
+        generator.run();
+    }
+
+    private void parse(String[] args) {
+        Map<String, String> values = new HashMap<>();
+        for (String arg : args) {
+            int split = arg.indexOf('=');
+            if (split < 0) {
+                throw new IllegalArgumentException("Arguments have the form key=value, got: " + arg);
+            }
+            values.put(arg.substring(0, split), arg.substring(split + 1));
+        }
+
+        image = values.getOrDefault("image", image);
+        shards = Integer.parseInt(values.getOrDefault("shards", "" + shards));
+        threads = Integer.parseInt(values.getOrDefault("threads", "" + threads));
+        seconds = Integer.parseInt(values.getOrDefault("seconds", "" + seconds));
+        report = Integer.parseInt(values.getOrDefault("report", "" + report));
+        sizes = values.getOrDefault("sizes", sizes);
+        reads = Double.parseDouble(values.getOrDefault("reads", "" + reads));
+        deletes = Double.parseDouble(values.getOrDefault("deletes", "" + deletes));
+        gets = Double.parseDouble(values.getOrDefault("gets", "" + gets));
+        defrag = Double.parseDouble(values.getOrDefault("defrag", "" + defrag));
+
+        nextSize(new Random()); // fails early on a broken size distribution
+    }
+
+    private void run() throws Exception {
+        for (int i = 0; i < OPERATIONS.length; i++) {
+            interval[i] = new LatencyHistogram();
+            total[i] = new LatencyHistogram();
+        }
+
+        volume = Volume.create(image, shards);
+        System.out.println("Running " + threads + " threads for " + seconds + "s against "
+                + shards + " shard(s) of " + image + ", sizes=" + sizes + " reads=" + reads
+                + " deletes=" + deletes + " gets=" + gets + " defrag=" + defrag);
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<?>> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            workers.add(pool.submit(() -> work(thread)));
+        }
+
+        long startNanos = System.nanoTime();
+        long endNanos = startNanos + TimeUnit.SECONDS.toNanos(seconds);
+        long nextReport = startNanos + TimeUnit.SECONDS.toNanos(report);
+        // a worker only ends early if it failed, then the run stops
+        while (System.nanoTime() < endNanos && workers.stream().noneMatch(Future::isDone)) {
+            Thread.sleep(Math.max(1, TimeUnit.NANOSECONDS.toMillis(Math.min(nextReport, endNanos) - System.nanoTime())));
+            if (System.nanoTime() >= nextReport) {
+                printReport("t=" + TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - startNanos) + "s",
+                        interval, report, true);
+                nextReport += TimeUnit.SECONDS.toNanos(report);
+            }
+        }
+
+        running.set(false);
+        pool.shutdown();
+        pool.awaitTermination(1, TimeUnit.MINUTES);
+
+        double elapsed = (System.nanoTime() - startNanos) / 1e9;
+        printReport("total", total, elapsed, false);
+        for (int i = 0; i < OPERATIONS.length; i++) {
+            if (refused.get(i) > 0) {
+                System.out.println("  " + OPERATIONS[i] + " refused: " + refused.get(i));
+            }
+            if (idle.get(i) > 0) {
+                System.out.println("  " + OPERATIONS[i] + " with no live file to pick: " + idle.get(i));
+            }
+        }
+
+        // an exception other than IOException ends a worker, its future holds it
+        boolean failed = false;
+        for (int t = 0; t < workers.size(); t++) {
+            try {
+                workers.get(t).get();
+            } catch (ExecutionException e) {
+                System.err.println("Worker " + t + " failed: " + e.getCause());
+                e.getCause().printStackTrace();
+                failed = true;
+            }
+        }
+        if (failed) {
+            System.exit(1);
+        }
+    }
+
+    // ----- worker -----
+
+    private void work(int thread) {
+        Random random = ThreadLocalRandom.current();
+        long counter = 0;
+
+        while (running.get()) {
+            int operation = nextOperation(random);
+            long start = System.nanoTime();
+            boolean done;
+
+            try {
+                if (operation == ADD) {
+                    String name = "t" + thread + "-" + (counter++);
+                    byte[] content = new byte[nextSize(random)];
+                    random.nextBytes(content);
+                    done = volume.addfs(name, content).startsWith("Added file");
+                    if (done) {
+                        synchronized (live) {
+                            live.add(name);
+                        }
+                    }
+                } else if (operation == DFRG) {
+                    volume.dfrgfs();
+                    done = true;
+                } else {
+                    String name = pickLive(random, operation == RM);
+                    if (name == null) {
+                        // nothing to pick is not a failure, it is not timed either
+                        idle.incrementAndGet(operation);
+                        continue;
+                    }
+                    if (operation == RM) {
+                        done = volume.rmfs(name).startsWith("File " + name + " marked");
+                    } else if (operation == CAT) {
+                        volume.catfs(name);
+                        done = true;
+                    } else {
+                        done = volume.getfs(name).startsWith("Returned file");
+                        new File(name).delete();
+                    }
+                }
+            } catch (IOException e) {
+                // e.g. catfs of a file that another thread just removed
+                done = false;
+            }
+
+            long nanos = System.nanoTime() - start;
+            if (done) {
+                interval[operation].record(nanos);
+                total[operation].record(nanos);
+            } else {
+                refused.incrementAndGet(operation);
+            }
+        }
+    }
+
+    private int nextOperation(Random random) {
+        if (random.nextDouble() < defrag) {
+            return DFRG;
+        }
+        if (random.nextDouble() < reads) {
+            return random.nextDouble() < gets ? GET : CAT;
+        }
+        return random.nextDouble() < deletes ? RM : ADD;
+    }
+
+    // random live file, removed from the list if it is going to be deleted
+    private String pickLive(Random random, boolean remove) {
+        synchronized (live) {
+            if (live.isEmpty()) {
+                return null;
+            }
+            int index = random.nextInt(live.size());
+            if (!remove) {
+                return live.get(index);
+            }
+            // swap with the last one, so removing stays cheap
+            String name = live.get(index);
+            live.set(index, live.get(live.size() - 1));
+            live.remove(live.size() - 1);
+            return name;
+        }
+    }
+
+    private int nextSize(Random random) {
+        String[] parts = sizes.split(":");
+        switch (parts[0]) {
+            case "fixed":
+                return Integer.parseInt(parts[1]);
+            case "uniform":
+                int min = Integer.parseInt(parts[1]);
+                int max = Integer.parseInt(parts[2]);
+                return min + random.nextInt(max - min + 1);
+            case "exp":
+                double mean = Double.parseDouble(parts[1]);
+                return (int) Math.min(Integer.MAX_VALUE / 2, -mean * Math.log(1 - random.nextDouble()));
+            default:
+                throw new IllegalArgumentException("Unknown size distribution: " + sizes);
+        }
+    }
+
+    // ----- reporting -----
+
+    private void printReport(String label, LatencyHistogram[] histograms, double seconds, boolean reset) {
+        long size = 0;
+        for (int i = 0; i < volume.shardCount(); i++) {
+            size += new File(volume.shardName(i)).length();
+        }
+
+        long operations = 0;
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < OPERATIONS.length; i++) {
+            LatencyHistogram h = histograms[i];
+            long count = h.count();
+            operations += count;
+            if (count == 0) {
+                continue;
+            }
+            sb.append(String.format("  %-7s %9.1f ops/s  p50=%8.1fus  p99=%8.1fus  p999=%8.1fus%n",
+                    OPERATIONS[i], count / seconds, h.percentile(0.50) / 1e3,
+                    h.percentile(0.99) / 1e3, h.percentile(0.999) / 1e3));
+            if (reset) {
+                h.reset();
+            }
+        }
+
+        System.out.printf("%s: %.1f ops/s, image size %d bytes, %d live files%n",
+                label, operations / seconds, size, liveCount());
+        System.out.print(sb);
+    }
+
+    private int liveCount() {
+        synchronized (live) {
+            return live.size();
+        }
+    }
+
+    // Latency histogram with buckets that grow exponentially: 16 buckets per power
+    // of two, so every value is off by at most ~6%. Fixed size, so a long soak run
+    // does not need more memory over time.
+    static class LatencyHistogram {
+        private static final int SUB_BUCKETS = 16;
+        private final AtomicLongArray counts = new AtomicLongArray(64 * SUB_BUCKETS);
+
+        void record(long nanos) {
+            counts.incrementAndGet(bucket(Math.max(1, nanos)));
+        }
+
+        long count() {
+            long sum = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                sum += counts.get(i);
+            }
+            return sum;
+        }
+
+        // upper bound of the bucket that holds the given percentile
+        long percentile(double fraction) {
+            long target = (long) Math.ceil(count() * fraction);
+            long seen = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                seen += counts.get(i);
+                if (seen >= target && seen > 0) {
+                    return upperBound(i);
+                }
+            }
+            return 0;
+        }
+
+        void reset() {
+            for (int i = 0; i < counts.length(); i++) {
+                counts.set(i, 0);
+            }
+        }
+
+        private static int bucket(long value) {
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            if (exponent < 4) {
+                return (int) value; // small values get one bucket each
+            }
+            int sub = (int) ((value >>> (exponent - 4)) & (SUB_BUCKETS - 1));
+            return exponent * SUB_BUCKETS + sub;
+        }
+
+        private static long upperBound(int bucket) {
+            if (bucket < 4 * SUB_BUCKETS) {
+                return bucket;
+            }
+            int exponent = bucket / SUB_BUCKETS;
+            int sub = bucket % SUB_BUCKETS;
+            return ((long) (SUB_BUCKETS + sub + 1)) << (exponent - 4);
+        }
+    }
+}
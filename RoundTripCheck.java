@@ -0,0 +1,248 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+// Round-trip check: runs a random mix of addfs (also empty files), rmfs, writefs,
+// appendfs, dfrgfs and snapshotfs on a fresh image and after every operation
+// reads every file back (one by one and through BatchReader) and compares it
+// with what was written. Every seed is one image, a failing seed can be run
+// again on its own. After every step the changes are also replicated into a
+// backup image (exportChanges / applyChanges, every stream applied twice),
+// which must hold the same files.
+//
+// java -ea RoundTripCheck seeds=200 first=1 steps=300 pack=300 autodefrag=off
+//
+// pack:       pack_limit for packfs in bytes, or off
+// autodefrag: setting for autodfrgfs (e.g. 10:4096), or off
+// replicate:  on or off
+public class RoundTripCheck {
+
+    // ----- parameters -----
+
+    private int seeds = 200;
+    private long first = 1;
+    private int steps = 300;
+    private String pack = "300";
+    private String autodefrag = "off";
+    private boolean replicate = true;
+
+    public static void main(String[] args) throws Exception {
+        RoundTripCheck check = new RoundTripCheck();
+        check.parse(args);
+        int failed = check.run();
+        if (failed > 0) {
+            System.exit(1);
+        }
+    }
+
+    private void parse(String[] args) {
+        Map<String, String> values = new HashMap<>();
+        for (String arg : args) {
+            int split = arg.indexOf('=');
+            if (split < 0) {
+                throw new IllegalArgumentException("Arguments have the form key=value, got: " + arg);
+            }
+            values.put(arg.substring(0, split), arg.substring(split + 1));
+        }
+
+        seeds = Integer.parseInt(values.getOrDefault("seeds", "" + seeds));
+        first = Long.parseLong(values.getOrDefault("first", "" + first));
+        steps = Integer.parseInt(values.getOrDefault("steps", "" + steps));
+        pack = values.getOrDefault("pack", pack);
+        autodefrag = values.getOrDefault("autodefrag", autodefrag);
+        replicate = !values.getOrDefault("replicate", "on").equals("off");
+    }
+
+    private int run() throws IOException {
+        int failed = 0;
+        for (long seed = first; seed < first + seeds; seed++) {
+            String image = "roundtrip-" + seed + ".zvfs";
+            try {
+                runSeed(seed, image);
+                new File(image).delete();
+                new File(backupOf(image)).delete();
+            } catch (IllegalStateException e) {
+                // the image is kept for a closer look
+                System.out.println("seed " + seed + ": " + e.getMessage() + " (image kept as " + image + ")");
+                failed++;
+            } catch (IOException | RuntimeException e) {
+                System.out.println("seed " + seed + ": " + e + " (image kept as " + image + ")");
+                failed++;
+            }
+        }
+        System.out.println((seeds - failed) + " of " + seeds + " seeds passed (pack=" + pack
+                + " autodefrag=" + autodefrag + ")");
+        return failed;
+    }
+
+    private void runSeed(long seed, String image) throws IOException {
+        Random random = new Random(seed);
+        new File(image).delete();
+        new FileSystem().mkfs(image);
+        if (!pack.equals("off")) {
+            new FileSystem().packfs(image, pack);
+        }
+        if (!autodefrag.equals("off")) {
+            new FileSystem().autodfrgfs(image, autodefrag);
+        }
+        String backup = backupOf(image);
+        new File(backup).delete();
+        new FileSystem().mkfs(backup);
+        String position = "0";
+
+        // what every active file must contain
+        Map<String, byte[]> expected = new TreeMap<>();
+        int counter = 0;
+
+        for (int step = 0; step < steps; step++) {
+            int operation = random.nextInt(20);
+            String done;
+
+            if (operation < 7) {
+                String name = "n" + (counter++);
+                byte[] content = randomContent(random);
+                done = new FileSystem().addfs(image, name, content);
+                if (done.startsWith("Added file")) {
+                    expected.put(name, content);
+                }
+            } else if (operation < 11 && !expected.isEmpty()) {
+                String name = pick(random, expected);
+                done = new FileSystem().rmfs(image, name);
+                expected.remove(name);
+            } else if (operation < 17 && !expected.isEmpty()) {
+                String name = pick(random, expected);
+                byte[] content = randomContent(random);
+                boolean append = random.nextBoolean();
+                done = new FileSystem().writefs(image, name, content, append);
+                if (append) {
+                    byte[] old = expected.get(name);
+                    byte[] both = Arrays.copyOf(old, old.length + content.length);
+                    System.arraycopy(content, 0, both, old.length, content.length);
+                    content = both;
+                }
+                expected.put(name, content);
+            } else if (operation < 19) {
+                done = new FileSystem().dfrgfs(image);
+            } else {
+                done = new FileSystem().snapshotfs(image);
+            }
+
+            String when = "step " + step + " after \"" + done + "\"";
+            verify(image, expected, when);
+            if (replicate) {
+                position = replicate(image, backup, position, when);
+                verify(backup, expected, when + " in the backup");
+            }
+        }
+    }
+
+    private static String backupOf(String image) {
+        return image.replace(".zvfs", "-backup.zvfs");
+    }
+
+    // brings the backup up to date with the changes after "position" and returns
+    // the new position; if the image was compacted since, the backup starts over
+    // empty from 0. Every stream is applied twice, replaying must change nothing.
+    private String replicate(String image, String backup, String position, String when) throws IOException {
+        ByteArrayOutputStream changes = new ByteArrayOutputStream();
+        try {
+            new FileSystem().exportChanges(image, position, changes);
+        } catch (IllegalArgumentException e) {
+            new File(backup).delete();
+            new FileSystem().mkfs(backup);
+            changes.reset();
+            new FileSystem().exportChanges(image, "0", changes);
+        }
+
+        byte[] stream = changes.toByteArray();
+        for (int i = 0; i < 2; i++) {
+            String result = new FileSystem().applyChanges(backup, new ByteArrayInputStream(stream));
+            if (!result.startsWith("Applied")) {
+                throw new IllegalStateException(when + ": applyChanges on the backup failed: " + result);
+            }
+        }
+
+        // "ZVFSCHG1", change counter, compaction epoch
+        DataInputStream head = new DataInputStream(new ByteArrayInputStream(stream, 8, 6));
+        int counter = head.readInt();
+        int epoch = head.readShort() & 0xFFFF;
+        return epoch + ":" + counter;
+    }
+
+    // mostly small files, some empty ones and some bigger ones
+    private byte[] randomContent(Random random) {
+        int kind = random.nextInt(10);
+        int length = kind == 0 ? 0 : kind < 7 ? random.nextInt(200) : random.nextInt(2000);
+        byte[] content = new byte[length];
+        random.nextBytes(content);
+        return content;
+    }
+
+    private String pick(Random random, Map<String, byte[]> expected) {
+        List<String> names = new ArrayList<>(expected.keySet());
+        return names.get(random.nextInt(names.size()));
+    }
+
+    private void verify(String image, Map<String, byte[]> expected, String when) throws IOException {
+        // 1) every file on its own, like catfs
+        FileSystem layout = new FileSystem();
+        byte[] metadata = new byte[layout.metadataSize()];
+        try (RandomAccessFile filesys = new RandomAccessFile(image, "r")) {
+            filesys.readFully(metadata);
+            Map<String, int[]> found = layout.locate(metadata, expected.keySet());
+            for (Map.Entry<String, byte[]> file : expected.entrySet()) {
+                int[] extent = found.get(file.getKey());
+                if (extent == null) {
+                    throw new IllegalStateException(when + ": " + file.getKey() + " is missing");
+                }
+                byte[] content = new byte[extent[1]];
+                layout.readExtent(filesys, layout.backingLimit(metadata), extent[0], content);
+                if (!Arrays.equals(content, file.getValue())) {
+                    throw new IllegalStateException(when + ": " + file.getKey() + " has wrong content");
+                }
+            }
+        }
+
+        // 2) all files at once through BatchReader
+        int read = 0;
+        try (BatchReader reader = new BatchReader(image, expected.keySet(), 2)) {
+            while (reader.hasNext()) {
+                Map.Entry<String, ByteBuffer> file = reader.next();
+                byte[] content = new byte[file.getValue().remaining()];
+                file.getValue().get(content);
+                if (!Arrays.equals(content, expected.get(file.getKey()))) {
+                    throw new IllegalStateException(when + ": " + file.getKey() + " has wrong content in BatchReader");
+                }
+                read++;
+            }
+        }
+        if (read != expected.size()) {
+            throw new IllegalStateException(when + ": BatchReader returned " + read + " of " + expected.size() + " files");
+        }
+
+        // 3) lsfs lists exactly the active files
+        String listing = new FileSystem().lsfs(image);
+        List<String> listed = new ArrayList<>();
+        if (!listing.startsWith("No active files")) {
+            for (String line : listing.split(System.lineSeparator())) {
+                listed.add(line.split("  ", 2)[0]);
+            }
+        }
+        Collections.sort(listed);
+        if (!listed.equals(new ArrayList<>(expected.keySet()))) {
+            throw new IllegalStateException(when + ": lsfs lists " + listed + " instead of " + expected.keySet());
+        }
+    }
+}
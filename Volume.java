@@ -0,0 +1,253 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// A volume spreads its files over N .zvfs images ("shards") by hashing the file
+// name, so every name always lands in the same shard. Each shard has its own
+// lock: writes to different shards run at the same time and every shard brings
+// its own 32 entries / 4 GiB. The shards are normal images and can still be used
+// with all FileSystem operations.
+public class Volume {
+
+    // one lock per shard file, shared by all Volume objects of this JVM that open
+    // it (keyed by canonical path, so "vol" and "./vol" get the same lock) and by
+    // AsyncFileSystem; other processes are not locked out
+    private static final ConcurrentHashMap<String, ReentrantReadWriteLock> SHARD_LOCKS = new ConcurrentHashMap<>();
+
+    // shards are called <volume>.<index>.zvfs
+    private final String volumeName;
+    private final String[] shardNames;
+    private final ReentrantReadWriteLock[] locks;
+
+    private Volume(String volumeName, int shardCount) throws IOException {
+        this.volumeName = volumeName;
+        this.shardNames = new String[shardCount];
+        this.locks = new ReentrantReadWriteLock[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shardNames[i] = volumeName + "." + i + ".zvfs";
+            locks[i] = lockOf(shardNames[i]);
+        }
+    }
+
+    // the lock of an image file, for everything in this JVM that writes to it
+    static ReentrantReadWriteLock lockOf(String fsName) throws IOException {
+        return SHARD_LOCKS.computeIfAbsent(new File(fsName).getCanonicalPath(),
+                path -> new ReentrantReadWriteLock());
+    }
+
+    // "data.zvfs" and "data" both name the volume "data"
+    private static String baseName(String volumeName) {
+        if (volumeName.toLowerCase().endsWith(".zvfs")) {
+            return volumeName.substring(0, volumeName.length() - ".zvfs".length());
+        }
+        return volumeName;
+    }
+
+    // creates all shards of a new volume; an existing volume is not overwritten,
+    // mkfs would empty its shards and open would still find the extra ones
+    public static Volume create(String volumeName, int shardCount) throws IOException {
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("A volume needs at least one shard");
+        }
+        String base = baseName(volumeName);
+        for (int i = 0; i <= shardCount; i++) {
+            if (new File(base + "." + i + ".zvfs").exists()) {
+                throw new IOException("Volume " + base + " already exists");
+            }
+        }
+        Volume volume = new Volume(base, shardCount);
+        for (String shard : volume.shardNames) {
+            new FileSystem().mkfs(shard);
+        }
+        return volume;
+    }
+
+    // opens an existing volume, the number of shards is found on disk
+    public static Volume open(String volumeName) throws IOException {
+        String base = baseName(volumeName);
+        int shardCount = 0;
+        while (new File(base + "." + shardCount + ".zvfs").exists()) {
+            shardCount++;
+        }
+        if (shardCount == 0) {
+            throw new IOException("Volume " + base + " does not exist");
+        }
+        return new Volume(base, shardCount);
+    }
+
+    public int shardCount() {
+        return shardNames.length;
+    }
+
+    public String shardName(int index) {
+        return shardNames[index];
+    }
+
+    // shard that holds (or will hold) the file
+    public String shardOf(String fileName) {
+        return shardNames[shardIndex(fileName)];
+    }
+
+    private int shardIndex(String fileName) {
+        // String.hashCode is specified by the JLS, so it is the same on every run
+        return Math.floorMod(fileName.hashCode(), shardNames.length);
+    }
+
+    // ----- single-file operations, routed to one shard -----
+
+    protected String addfs(String fileName) throws IOException {
+        int shard = shardIndex(fileName);
+        locks[shard].writeLock().lock();
+        try {
+            return new FileSystem().addfs(shardNames[shard], fileName);
+        } finally {
+            locks[shard].writeLock().unlock();
+        }
+    }
+
+    protected String addfs(String fileName, byte[] content) throws IOException {
+        int shard = shardIndex(fileName);
+        locks[shard].writeLock().lock();
+        try {
+            return new FileSystem().addfs(shardNames[shard], fileName, content);
+        } finally {
+            locks[shard].writeLock().unlock();
+        }
+    }
+
+    protected String rmfs(String fileName) throws IOException {
+        int shard = shardIndex(fileName);
+        locks[shard].writeLock().lock();
+        try {
+            return new FileSystem().rmfs(shardNames[shard], fileName);
+        } finally {
+            locks[shard].writeLock().unlock();
+        }
+    }
+
+    protected String catfs(String fileName) throws IOException {
+        int shard = shardIndex(fileName);
+        locks[shard].readLock().lock();
+        try {
+            return new FileSystem().catfs(shardNames[shard], fileName);
+        } finally {
+            locks[shard].readLock().unlock();
+        }
+    }
+
+    protected String getfs(String fileName) throws IOException {
+        int shard = shardIndex(fileName);
+        locks[shard].readLock().lock();
+        try {
+            return new FileSystem().getfs(shardNames[shard], fileName);
+        } finally {
+            locks[shard].readLock().unlock();
+        }
+    }
+
+    // ----- volume-wide operations -----
+
+    // active files of all shards in one list
+    protected String lsfs() throws IOException {
+        StringBuilder sb = new StringBuilder();
+
+        for (int i = 0; i < shardNames.length; i++) {
+            String listing;
+            locks[i].readLock().lock();
+            try {
+                listing = new FileSystem().lsfs(shardNames[i]);
+            } finally {
+                locks[i].readLock().unlock();
+            }
+            // an empty shard answers with a message instead of a list
+            if (!listing.startsWith("No active files")) {
+                sb.append(listing);
+            }
+        }
+
+        if (sb.length() == 0) {
+            return "No active files in volume " + volumeName;
+        }
+        return sb.toString();
+    }
+
+    // summed up counters of all shards + one line per shard
+    protected String gifs() throws IOException {
+        int active = 0;
+        int deleted = 0;
+        int free = 0;
+        long totalSize = 0;
+        StringBuilder shards = new StringBuilder();
+
+        for (int i = 0; i < shardNames.length; i++) {
+            int[] counts;
+            locks[i].readLock().lock();
+            try {
+                counts = new FileSystem().headerCounts(shardNames[i]);
+            } finally {
+                locks[i].readLock().unlock();
+            }
+            long size = new File(shardNames[i]).length();
+
+            active += counts[0];
+            deleted += counts[1];
+            free += counts[2] - counts[0] - counts[1];
+            totalSize += size;
+
+            shards.append("\n  ").append(shardNames[i]).append(": ")
+                    .append(counts[0]).append(" active, ")
+                    .append(counts[1]).append(" deleted, ")
+                    .append(size).append(" bytes");
+        }
+
+        return "Volume: " + volumeName + " (" + shardNames.length + " shards)\n" +
+                "Number of active files: " + active + "\n" +
+                "Number of deleted files: " + deleted + "\n" +
+                "Free entries for new files: " + free + "\n" +
+                "Total size of all shards: " + totalSize + " bytes" +
+                shards;
+    }
+
+    // defragments all shards at the same time, one thread per shard
+    protected String dfrgfs() throws IOException {
+        ExecutorService pool = Executors.newFixedThreadPool(shardNames.length);
+        try {
+            List<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < shardNames.length; i++) {
+                final int shard = i;
+                results.add(pool.submit(() -> {
+                    locks[shard].writeLock().lock();
+                    try {
+                        return new FileSystem().dfrgfs(shardNames[shard]);
+                    } finally {
+                        locks[shard].writeLock().unlock();
+                    }
+                }));
+            }
+
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < results.size(); i++) {
+                sb.append(shardNames[i]).append(": ").append(results.get(i).get());
+                if (i < results.size() - 1) {
+                    sb.append("\n");
+                }
+            }
+            return sb.toString();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Defragmentation of volume " + volumeName + " was interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Defragmentation of volume " + volumeName + " failed: "
+                    + e.getCause().getMessage(), e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
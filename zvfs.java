@@ -1,5 +1,9 @@
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
 
 public class zvfs {
     public static void main(String[] args)
@@ -42,11 +46,95 @@ public class zvfs {
         } else if (operation.equals("getfs")) {
             FileSystem obj = new FileSystem();
             result = obj.getfs(fsName, fileName);
+        } else if (operation.equals("snapshotfs")) {
+            FileSystem obj = new FileSystem();
+            result = obj.snapshotfs(fsName);
+        } else if (operation.equals("lssnapfs")) {
+            FileSystem obj = new FileSystem();
+            result = obj.lssnapfs(fsName);
+        } else if (operation.equals("clonefs")) {
+            FileSystem obj = new FileSystem();
+            result = obj.clonefs(fsName, fileName);
+        } else if (operation.equals("writefs")) {
+            FileSystem obj = new FileSystem();
+            result = obj.writefs(fsName, fileName);
+        } else if (operation.equals("appendfs")) {
+            FileSystem obj = new FileSystem();
+            result = obj.appendfs(fsName, fileName);
+        } else if (operation.equals("autodfrgfs")) {
+            // java zvfs autodfrgfs filesystem2.zvfs 20:65536 (or off)
+            FileSystem obj = new FileSystem();
+            result = obj.autodfrgfs(fsName, fileName);
+        } else if (operation.equals("packfs")) {
+            // java zvfs packfs filesystem2.zvfs 512 (or off)
+            FileSystem obj = new FileSystem();
+            result = obj.packfs(fsName, fileName);
+        } else if (operation.equals("changesfs")) {
+            // java zvfs changesfs filesystem2.zvfs 12 (or @<unix time>)
+            FileSystem obj = new FileSystem();
+            result = obj.changesfs(fsName, fileName);
+        } else if (operation.equals("exportfs")) {
+            // java zvfs exportfs filesystem2.zvfs 12 > changes.bin (stream for applyfs,
+            // written to stdout, messages go to stderr)
+            if (fileName == null) {
+                System.err.println("Give a change position, e.g. java zvfs exportfs filesystem2.zvfs 0");
+                System.exit(1);
+            }
+            FileSystem obj = new FileSystem();
+            try {
+                int count = obj.exportChanges(fsName, fileName, System.out);
+                System.err.println("Exported " + count + " changes of filesystem " + fsName);
+            } catch (NumberFormatException e) {
+                System.err.println("Give a change position (e.g. 12 or 3:12)");
+                System.exit(1);
+            } catch (IllegalArgumentException e) {
+                System.err.println(e.getMessage());
+                System.exit(1);
+            }
+            return;
+        } else if (operation.equals("applyfs")) {
+            // java zvfs applyfs backup.zvfs < changes.bin
+            FileSystem obj = new FileSystem();
+            result = obj.applyChanges(fsName, System.in);
+        } else if (operation.equals("catmanyfs")) {
+            // java zvfs catmanyfs filesystem2.zvfs a.txt,b.txt,c.txt
+            StringBuilder sb = new StringBuilder();
+            try (BatchReader reader = new BatchReader(fsName, Arrays.asList(fileName.split(",")), 2)) {
+                while (reader.hasNext()) {
+                    Map.Entry<String, ByteBuffer> file = reader.next();
+                    sb.append("== ").append(file.getKey()).append(" ==\n")
+                            .append(StandardCharsets.UTF_8.decode(file.getValue())).append("\n");
+                }
+                for (String name : reader.missing()) {
+                    sb.append("File ").append(name).append(" not found in filesystem ").append(fsName).append("\n");
+                }
+            }
+            result = sb.toString();
+        } else if (operation.equals("mkvol")) {
+            // java zvfs mkvol volume 4 --> volume.0.zvfs ... volume.3.zvfs
+            Volume.create(fsName, Integer.parseInt(fileName));
+            result = "Created new volume " + fsName + " with " + fileName + " shards";
+        } else if (operation.equals("addvol")) {
+            result = Volume.open(fsName).addfs(fileName);
+        } else if (operation.equals("rmvol")) {
+            result = Volume.open(fsName).rmfs(fileName);
+        } else if (operation.equals("lsvol")) {
+            result = Volume.open(fsName).lsfs();
+        } else if (operation.equals("dfrgvol")) {
+            result = Volume.open(fsName).dfrgfs();
+        } else if (operation.equals("catvol")) {
+            result = Volume.open(fsName).catfs(fileName);
+        } else if (operation.equals("givol")) {
+            result = Volume.open(fsName).gifs();
+        } else if (operation.equals("getvol")) {
+            result = Volume.open(fsName).getfs(fileName);
         }
 
         else {
             result = "Error: Unknown operation '" + operation
-                    + "'. Supported operations are: mkfs, addfs, getfs, rmfs, lsfs, dfrgfs, catfs, gifs.";
+                    + "'. Supported operations are: mkfs, addfs, getfs, rmfs, lsfs, dfrgfs, catfs, gifs,"
+                    + " snapshotfs, lssnapfs, clonefs, writefs, appendfs, autodfrgfs,"
+                    + " packfs, changesfs, exportfs, applyfs, catmanyfs, mkvol, addvol, getvol, rmvol, lsvol, dfrgvol, catvol, givol.";
         }
 
         System.out.println(result);
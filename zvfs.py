@@ -17,7 +17,7 @@ MAGIC_OFFSET = 0  # 8 bytes, ASCII b"ZVFSDSK1"
 VERSION_OFFSET = 8  # 1 byte, format version (1)
 FLAGS_OFFSET = 9  # 1 byte, 0 = free spot exists, 1 = full
 
-RESERVED0_OFFSET = 10  # 2 bytes, zero padding
+COMPACTION_EPOCH_OFFSET = 10  # 2 bytes, +1 by every dfrgfs that drops deleted files
 FILE_COUNT_OFFSET = 12  # 2 bytes, number of active (non-deleted) files
 FILE_CAPACITY_OFFSET = 14  # 2 bytes, total slots in entry table (should be 32)
 
@@ -31,6 +31,9 @@ NEXT_FREE_OFFSET_OFFSET = 28  # 4 bytes, header field "next_free_offset"
 FREE_ENTRY_OFFSET = 32  # 4 bytes, header field "free_entry_offset"
 DELETED_FILES_OFFSET = 36  # 2 bytes, header field "deleted_files"
 RESERVED2_OFFSET = 38  # 26 bytes, zero padding (reserved2)
+# fields the java implementation keeps inside reserved2
+DEAD_BYTES_OFFSET = 46  # 4 bytes, data no active file uses anymore
+FRAGMENTATION_OFFSET = 50  # 2 bytes, dead_bytes per mille of the data region
 
 # Derived layout positions inside the .zvfs file
 FILE_TABLE = HEADER_SIZE  # start of file entry table
@@ -83,6 +86,19 @@ def check_fs_update_fsname(fsname):
     return fsname
 
 
+# images with a snapshot or clones (written by the Java version) have format
+# version 2: their data may be frozen or live in another image, which this
+# implementation does not know about
+def check_version_supported(fsname):
+    with open(Path(f"{fsname}"), "rb") as fsys:
+        fsys.seek(VERSION_OFFSET)
+        version = unpack("B", fsys.read(1))[0]
+    assert version == VERSION_VALUE, (
+        f"Filesystem {fsname} has format version {version} (snapshot / clone), "
+        f"use the Java implementation for it."
+    )
+
+
 # search for a file in the fs and return its counter (position in the file entry table)
 def search_file_in_fs_counter(fsname, filename):
     fsname_path = Path(f"{fsname}")
@@ -289,6 +305,7 @@ def do_addfs(fsname, filename):
 
 def do_getfs(fsname, filename):
     fsname = check_fs_update_fsname(fsname)
+    check_version_supported(fsname)
     fs_path = Path(f"{fsname}")
 
     file_path = Path(filename)
@@ -369,6 +386,7 @@ def do_lsfs(fsname):
 
 def do_dfrgfs(fsname):
     fsname = check_fs_update_fsname(fsname)
+    check_version_supported(fsname)
     fs_path = Path(f"{fsname}")
 
     header_format = "8s B B H H H H H I I I I H 26s"
@@ -382,7 +400,7 @@ def do_dfrgfs(fsname):
             magic,
             version,
             flags,
-            reserved0,
+            compaction_epoch,
             file_count,
             file_capacity,
             file_entry_size,
@@ -493,11 +511,19 @@ def do_dfrgfs(fsname):
 
         freed_bytes = max(0, original_next_free - new_next_free)
 
+        # nothing is dead after compacting; stale values would make the java
+        # auto-defrag fire on every operation
+        dead_from = DEAD_BYTES_OFFSET - RESERVED2_OFFSET
+        dead_to = FRAGMENTATION_OFFSET + 2 - RESERVED2_OFFSET
+        reserved2 = reserved2[:dead_from] + b"\x00" * (dead_to - dead_from) + reserved2[dead_to:]
+
         new_header = (
             magic,
             version,
             new_flags,
-            reserved0,
+            # deletions are gone now, change positions of the java changesfs from
+            # before this are useless
+            (compaction_epoch + 1) % 65536 if deleted_count > 0 else compaction_epoch,
             new_file_count,
             file_capacity,
             file_entry_size,
@@ -521,6 +547,7 @@ def do_dfrgfs(fsname):
 
 def do_catfs(fsname, filename):
     fsname = check_fs_update_fsname(fsname)
+    check_version_supported(fsname)
     fs_path = Path(f"{fsname}")
 
     with open(fs_path, "rb") as filesys: